@@ -0,0 +1,212 @@
+package org.yangxin.nio;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FileCopyDemo里各个FileCopyRunner的JMH基准测试。
+ * 结果里的megabytes一行就是MB/s；加上-prof gc可以看到每次复制的分配量和GC次数。
+ * 源文件按大小缓存在-Dbenchmark.dir指定的目录（默认java.io.tmpdir）里，多次运行不会重复生成。
+ * 注意源文件通常已经在page cache里，测的是缓存命中时的复制速度。
+ * 用法：mvn -Pjmh package && java -jar target/benchmarks.jar FileCopyBenchmark -p fileSize=4096,1048576 -prof gc
+ *
+ * @author yangxin
+ * 2026/10/17 19:00
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileCopyBenchmark {
+
+    private static final double MB = 1024 * 1024;
+    /**
+     * 不持有任何资源，所有trial共用
+     */
+    private static final FileCopyRunner NO_BUFFER_RUNNER = FileCopyDemo.noBufferStreamCopy();
+
+    @State(Scope.Benchmark)
+    public static class SourceFile {
+
+        /**
+         * 更大的文件用-p fileSize=4294967296指定，源文件要占同样大小的磁盘空间
+         */
+        @Param({"4096", "1048576", "67108864", "1073741824"})
+        public long fileSize;
+
+        File source;
+        File target;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            source = sourceFile(fileSize);
+            target = targetFile(fileSize);
+        }
+
+        @SuppressWarnings("ResultOfMethodCallIgnored")
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            target.delete();
+        }
+    }
+
+    /**
+     * 单字节复制单独用一组文件大小：在更大的文件上一次要跑几十分钟，所以上限是64MB，
+     * 参数名和fileSize不同，-p fileSize=...不会把它带到大文件上
+     */
+    @State(Scope.Benchmark)
+    public static class SmallSourceFile {
+
+        @Param({"4096", "1048576", "67108864"})
+        public long smallFileSize;
+
+        File source;
+        File target;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            source = sourceFile(smallFileSize);
+            target = targetFile(smallFileSize);
+        }
+
+        @SuppressWarnings("ResultOfMethodCallIgnored")
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            target.delete();
+        }
+    }
+
+    /**
+     * 源文件按大小缓存，大小不对时重新生成
+     */
+    private static File sourceFile(long size) throws IOException {
+        File source = new File(directory(), "source-" + size + ".bin");
+        if (source.length() != size) {
+            FileCopyDemo.writeRandomFile(source, size);
+        }
+        return source;
+    }
+
+    private static File targetFile(long size) throws IOException {
+        return new File(directory(), "target-" + size + ".bin");
+    }
+
+    private static File directory() throws IOException {
+        File dir = new File(System.getProperty("benchmark.dir", System.getProperty("java.io.tmpdir")),
+                "file-copy-benchmark");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("无法创建目录：" + dir);
+        }
+        return dir;
+    }
+
+    /**
+     * 使用缓冲区的策略，和缓冲区大小做交叉组合
+     */
+    @State(Scope.Benchmark)
+    public static class BufferedRunner {
+
+        @Param({"bufferedStreamCopy", "nioBufferCopy"})
+        public String runner;
+
+        @Param({"1024", "8192", "65536", "1048576"})
+        public int bufferSize;
+
+        FileCopyRunner fileCopyRunner;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            fileCopyRunner = FileCopyDemo.runner(runner, bufferSize);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            fileCopyRunner.shutdown();
+        }
+    }
+
+    /**
+     * 缓冲区大小对它们没有意义的策略，单独列出来避免重复运行
+     */
+    @State(Scope.Benchmark)
+    public static class UnbufferedRunner {
+
+        @Param({"nioTransferCopy", "mappedCopy", "parallelCopy", "asyncCopy"})
+        public String runner;
+
+        FileCopyRunner fileCopyRunner;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            fileCopyRunner = FileCopyDemo.runner(runner, 0);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            fileCopyRunner.shutdown();
+        }
+    }
+
+    /**
+     * 按复制的数据量计数，JMH会把它换算成每秒的值，也就是MB/s
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Throughput {
+
+        public double megabytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megabytes = 0;
+        }
+    }
+
+    @Benchmark
+    public void bufferedCopy(SourceFile file, BufferedRunner runner, Throughput throughput) {
+        runner.fileCopyRunner.copyFile(file.source, file.target);
+        throughput.megabytes += file.fileSize / MB;
+    }
+
+    @Benchmark
+    public void unbufferedCopy(SourceFile file, UnbufferedRunner runner, Throughput throughput) {
+        runner.fileCopyRunner.copyFile(file.source, file.target);
+        throughput.megabytes += file.fileSize / MB;
+    }
+
+    @Benchmark
+    public void noBufferCopy(SmallSourceFile file, Throughput throughput) {
+        NO_BUFFER_RUNNER.copyFile(file.source, file.target);
+        throughput.megabytes += file.smallFileSize / MB;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(FileCopyBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,333 @@
+package org.yangxin.aio;
+
+import org.yangxin.common.buffer.ByteBufferPool;
+import org.yangxin.nio.FileCopyRunner;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 基于AsynchronousFileChannel的文件复制。
+ * 每个文件同时保持queueDepth个按位置的读写在进行中，读完一块立即写到同样的偏移，写完再发起下一块的读，
+ * 调用线程只负责发起，不会阻塞。多个文件可以同时复制，所有文件合计的在途块数不超过maxInFlight。
+ * 注意JDK在Linux上的文件AIO是用通道的线程池模拟的，真正同时落到设备上的请求数不会超过ioThreads。
+ *
+ * @author yangxin
+ * 2026/10/17 20:10
+ */
+public class AsyncFileCopier implements FileCopyRunner {
+
+    private static final ReadHandler READ_HANDLER = new ReadHandler();
+    private static final WriteHandler WRITE_HANDLER = new WriteHandler();
+
+    private final int queueDepth;
+    private final int bufferSize;
+    private final ByteBufferPool bufferPool = ByteBufferPool.DEFAULT;
+    private final InFlightLimiter limiter;
+    private final ExecutorService executor;
+
+    public AsyncFileCopier() {
+        this(4, 8, 64 * 1024, 64);
+    }
+
+    /**
+     * @param ioThreads   所有文件通道共用的线程数
+     * @param queueDepth  单个文件同时在途的块数
+     * @param bufferSize  每块的大小，不超过池的最大级别时buffer可以复用
+     * @param maxInFlight 所有文件合计的在途块数上限
+     */
+    public AsyncFileCopier(int ioThreads, int queueDepth, int bufferSize, int maxInFlight) {
+        this.queueDepth = queueDepth;
+        this.bufferSize = bufferSize;
+        this.limiter = new InFlightLimiter(maxInFlight);
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(ioThreads, runnable -> {
+            Thread thread = new Thread(runnable, "async-file-copy-" + threadIndex.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void copyFile(File source, File target) {
+        try {
+            copyAsync(source, target).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+        }
+    }
+
+    /**
+     * 发起复制后立即返回
+     *
+     * @return 完成时给出复制的字节数
+     */
+    public CompletableFuture<Long> copyAsync(File source, File target) {
+        CopyTask task = new CopyTask();
+        try {
+            task.source = AsynchronousFileChannel.open(source.toPath(),
+                    EnumSet.of(StandardOpenOption.READ), executor);
+            task.target = AsynchronousFileChannel.open(target.toPath(), EnumSet.of(StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING), executor);
+            task.size = task.source.size();
+        } catch (IOException e) {
+            task.fail(e);
+            return task.result;
+        }
+
+        if (task.size == 0) {
+            task.finish();
+        } else {
+            task.fill();
+        }
+        return task.result;
+    }
+
+    /**
+     * 关闭共用的线程池，之后不能再复制。线程是守护线程，不会阻止JVM退出，但每个实例都有自己的线程池，用完要调用
+     */
+    @Override
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "asyncCopy(" + queueDepth + ", " + bufferSize + ")";
+    }
+
+    /**
+     * 一个文件的复制进度，字段只在synchronized里修改
+     */
+    private class CopyTask {
+
+        private final CompletableFuture<Long> result = new CompletableFuture<>();
+        private AsynchronousFileChannel source;
+        private AsynchronousFileChannel target;
+        private long size;
+        private long nextPosition;
+        private long copied;
+        private int inFlight;
+
+        /**
+         * 把在途块补到queueDepth，拿到全局许可后才真正发起读
+         */
+        void fill() {
+            List<Chunk> chunks = new ArrayList<>();
+            synchronized (this) {
+                while (inFlight < queueDepth && nextPosition < size && !result.isDone()) {
+                    int length = (int) Math.min(bufferSize, size - nextPosition);
+                    chunks.add(new Chunk(this, nextPosition, length));
+                    nextPosition += length;
+                    inFlight++;
+                }
+            }
+            for (Chunk chunk : chunks) {
+                limiter.acquire(chunk::start);
+            }
+        }
+
+        void chunkCompleted(Chunk chunk) {
+            boolean finished;
+            synchronized (this) {
+                inFlight--;
+                copied += chunk.length;
+                finished = copied == size;
+            }
+            if (finished) {
+                finish();
+            } else {
+                fill();
+            }
+        }
+
+        void finish() {
+            try {
+                close();
+                result.complete(size);
+            } catch (IOException e) {
+                result.completeExceptionally(e);
+            }
+        }
+
+        /**
+         * 关闭通道后，其余在途的读写会以AsynchronousCloseException结束，各自归还buffer和许可
+         */
+        void fail(Throwable exc) {
+            if (result.completeExceptionally(exc)) {
+                try {
+                    close();
+                } catch (IOException e) {
+                    exc.addSuppressed(e);
+                }
+            }
+        }
+
+        private void close() throws IOException {
+            try {
+                if (source != null) {
+                    source.close();
+                }
+            } finally {
+                if (target != null) {
+                    target.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * 一块数据，先读满再写完，短读短写都从上次停下的位置继续
+     */
+    private class Chunk {
+
+        private final CopyTask task;
+        private final long position;
+        private final int length;
+        private ByteBuffer buffer;
+
+        Chunk(CopyTask task, long position, int length) {
+            this.task = task;
+            this.position = position;
+            this.length = length;
+        }
+
+        void start() {
+            if (task.result.isDone()) {
+                limiter.release();
+                return;
+            }
+            buffer = bufferPool.acquire(length);
+            read();
+        }
+
+        void read() {
+            task.source.read(buffer, position + buffer.position(), this, READ_HANDLER);
+        }
+
+        void write() {
+            task.target.write(buffer, position + buffer.position(), this, WRITE_HANDLER);
+        }
+
+        void completed() {
+            release();
+            task.chunkCompleted(this);
+        }
+
+        void failed(Throwable exc) {
+            release();
+            task.fail(exc);
+        }
+
+        private void release() {
+            bufferPool.release(buffer);
+            buffer = null;
+            limiter.release();
+        }
+    }
+
+    private static class ReadHandler implements CompletionHandler<Integer, Chunk> {
+
+        @Override
+        public void completed(Integer result, Chunk chunk) {
+            if (result < 0) {
+                chunk.failed(new EOFException("复制过程中源文件变短了"));
+                return;
+            }
+
+            if (chunk.buffer.hasRemaining()) {
+                chunk.read();
+            } else {
+                chunk.buffer.flip();
+                chunk.write();
+            }
+        }
+
+        @Override
+        public void failed(Throwable exc, Chunk chunk) {
+            chunk.failed(exc);
+        }
+    }
+
+    private static class WriteHandler implements CompletionHandler<Integer, Chunk> {
+
+        @Override
+        public void completed(Integer result, Chunk chunk) {
+            if (chunk.buffer.hasRemaining()) {
+                chunk.write();
+            } else {
+                chunk.completed();
+            }
+        }
+
+        @Override
+        public void failed(Throwable exc, Chunk chunk) {
+            chunk.failed(exc);
+        }
+    }
+
+    /**
+     * 全局在途块数的非阻塞限流：拿不到许可的任务排队，有块完成归还许可时再替它发起
+     */
+    private static class InFlightLimiter {
+
+        private final AtomicInteger available;
+        private final Queue<Runnable> waiters = new ConcurrentLinkedQueue<>();
+
+        InFlightLimiter(int permits) {
+            this.available = new AtomicInteger(permits);
+        }
+
+        void acquire(Runnable onPermit) {
+            waiters.offer(onPermit);
+            drain();
+        }
+
+        void release() {
+            available.incrementAndGet();
+            drain();
+        }
+
+        private void drain() {
+            while (!waiters.isEmpty()) {
+                if (!tryAcquire()) {
+                    return;
+                }
+                Runnable waiter = waiters.poll();
+                if (waiter == null) {
+                    available.incrementAndGet();
+                    continue;
+                }
+                waiter.run();
+            }
+        }
+
+        private boolean tryAcquire() {
+            int current;
+            do {
+                current = available.get();
+                if (current <= 0) {
+                    return false;
+                }
+            } while (!available.compareAndSet(current, current - 1));
+            return true;
+        }
+    }
+}
@@ -1,21 +1,34 @@
 package org.yangxin.aio;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 /**
+ * 默认一问一答：发一段，等它回来再发下一段。
+ * 指定-Dpipeline=N时进入流水线模式，最多N个请求在路上，吞吐量不再受往返时延限制。
+ *
  * @author yangxin
  * 2020/09/30 18:06
  */
 public class Client {
 
+    private static final String QUIT = "quit";
+    /**
+     * 流水线模式下每行请求的前缀，后面跟序号和一个空格，服务器原样写回
+     */
+    private static final String TAG = "#";
+    private static final int BUFFER = 1024;
+
     private AsynchronousSocketChannel clientChannel;
 
     private void close(Closeable closeable) {
@@ -43,6 +56,11 @@ public class Client {
 
             // 等待用户的输入
             BufferedReader consoleReader = new BufferedReader(new InputStreamReader(System.in));
+            int pipelineDepth = Integer.getInteger("pipeline", 1);
+            if (pipelineDepth > 1) {
+                pipeline(consoleReader, pipelineDepth);
+                return;
+            }
             while (true) {
                 String input = consoleReader.readLine();
 
@@ -67,6 +85,69 @@ public class Client {
         }
     }
 
+    /**
+     * 流水线模式：不等回复就发下一行，窗口满了才等。每行带上"#序号 "和换行，服务器原样写回，
+     * 由单独的线程按换行切分、核对序号。输入quit或者结束时等所有回复都到了再退出。
+     */
+    private void pipeline(BufferedReader consoleReader, int depth)
+            throws IOException, InterruptedException, ExecutionException {
+        Semaphore outstanding = new Semaphore(depth);
+        Thread responseReader = new Thread(() -> readResponses(outstanding), "aio-client-reader");
+        responseReader.setDaemon(true);
+        responseReader.start();
+
+        long seq = 0;
+        String input;
+        while ((input = consoleReader.readLine()) != null && !QUIT.equals(input)) {
+            outstanding.acquire();
+            // 写完成只代表进了内核的发送缓冲区，不用等回复
+            ByteBuffer buffer = ByteBuffer.wrap((TAG + seq++ + " " + input + "\n").getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                clientChannel.write(buffer).get();
+            }
+        }
+        outstanding.acquire(depth);
+    }
+
+    /**
+     * 回复可能被拆开也可能粘在一起，按换行切分，每收到一行空出一个窗口
+     */
+    private void readResponses(Semaphore outstanding) {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER);
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        long expected = 0;
+        try {
+            while (clientChannel.read(buffer).get() > 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    byte b = buffer.get();
+                    if (b != '\n') {
+                        line.write(b);
+                        continue;
+                    }
+
+                    String msg = new String(line.toByteArray(), StandardCharsets.UTF_8);
+                    line.reset();
+                    System.out.println(msg);
+                    long seq = Long.parseLong(msg.substring(TAG.length(), msg.indexOf(' ')));
+                    if (seq != expected) {
+                        System.out.println("回复乱序：期望" + TAG + expected + "，收到" + TAG + seq);
+                    }
+                    expected = seq + 1;
+                    outstanding.release();
+                }
+                buffer.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // 退出时关闭通道，未完成的read会失败
+            if (clientChannel.isOpen()) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     public static void main(String[] args) {
         Client client = new Client();
         client.start();
@@ -1,21 +1,33 @@
 package org.yangxin.aio;
 
+import org.yangxin.common.buffer.ByteBufferPool;
+import org.yangxin.common.net.ChannelGroupMode;
+
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
 import java.nio.channels.AsynchronousServerSocketChannel;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * 回显服务器。不再用JVM默认的通道组，线程池由-Daio.group、-Daio.threads配置（见ChannelGroupMode）；
+ * 不读标准输入，进程收到终止信号时关闭通道组后退出。
+ *
  * @author yangxin
  * 2020/09/30 13:40
  */
 public class Server {
 
+    private static final int BUFFER = 1024;
+    private static final ByteBufferPool BUFFER_POOL = ByteBufferPool.DEFAULT;
+    private static final ReadHandler READ_HANDLER = new ReadHandler();
+    private static final WriteHandler WRITE_HANDLER = new WriteHandler();
+
+    private AsynchronousChannelGroup channelGroup;
     private AsynchronousServerSocketChannel serverChannel;
 
     private void close(Closeable closeable) {
@@ -31,25 +43,43 @@ public class Server {
         }
     }
 
-    @SuppressWarnings({"ResultOfMethodCallIgnored", "InfiniteLoopStatement"})
     private void start() {
+        ChannelGroupMode groupMode = ChannelGroupMode.fromSystemProperty(ChannelGroupMode.FIXED);
+        int threads = Integer.getInteger("aio.threads", Runtime.getRuntime().availableProcessors());
         try {
             // 绑定监听端口
-            // AsynchronousChannelGroup
-            serverChannel = AsynchronousServerSocketChannel.open();
+            channelGroup = groupMode.newGroup(groupMode.newExecutor(threads, "aio-echo"), threads);
+            serverChannel = AsynchronousServerSocketChannel.open(channelGroup);
             String LOCALHOST = "localhost";
             int DEFAULT_PORT = 8888;
             serverChannel.bind(new InetSocketAddress(LOCALHOST, DEFAULT_PORT));
-            System.out.println("启动服务器，监听端口：" + DEFAULT_PORT);
+            System.out.println("启动服务器，监听端口：" + DEFAULT_PORT + "，通道组：" + groupMode + "，线程数：" + threads);
 
-            while (true) {
-                serverChannel.accept(null, new AcceptHandler());
-                System.in.read();
-            }
+            // 同一时刻只有一个未完成的accept，下一个在回调里发起
+            serverChannel.accept(null, new AcceptHandler());
+            Runtime.getRuntime().addShutdownHook(new Thread(this::stop, "aio-echo-shutdown"));
+            channelGroup.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (IOException e) {
+            e.printStackTrace();
+            stop();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 关闭通道组里所有的通道，未完成的读写以失败结束，start()里的等待随之返回
+     */
+    private void stop() {
+        close(serverChannel);
+        if (channelGroup == null) {
+            return;
+        }
+
+        try {
+            channelGroup.shutdownNow();
         } catch (IOException e) {
             e.printStackTrace();
-        } finally {
-            close(serverChannel);
         }
     }
 
@@ -66,14 +96,9 @@ public class Server {
             }
 
             if (asynchronousSocketChannel != null && asynchronousSocketChannel.isOpen()) {
-                ClientHandler handler = new ClientHandler(asynchronousSocketChannel);
-
-                ByteBuffer buffer = ByteBuffer.allocate(1024);
-                Map<String, Object> info = new HashMap<>();
-                info.put("type", "read");
-                info.put("buffer", buffer);
-
-                asynchronousSocketChannel.read(buffer, info, handler);
+                // 每个连接从池里借一个buffer，读写都复用它，断开时归还
+                ClientContext context = new ClientContext(asynchronousSocketChannel, BUFFER_POOL.acquire(BUFFER));
+                asynchronousSocketChannel.read(context.buffer, context, READ_HANDLER);
             }
         }
 
@@ -84,39 +109,86 @@ public class Server {
     }
 
     /**
+     * 一个连接的全部状态，作为attachment在读写回调之间传递。
+     * 同一时刻一个连接上只有一个读或写在进行，所以不需要同步。
+     *
+     * @author yangxin
+     * 2026/10/17 16:20
+     */
+    private static class ClientContext {
+
+        private final AsynchronousSocketChannel channel;
+        private final ByteBuffer buffer;
+        private boolean closed;
+
+        ClientContext(AsynchronousSocketChannel channel, ByteBuffer buffer) {
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            BUFFER_POOL.release(buffer);
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 读完成：把读到的数据原样写回去。所有连接共用一个实例，状态都在ClientContext里。
+     *
      * @author yangxin
-     * 2020/09/30 17:38
+     * 2026/10/17 16:20
      */
-    private static class ClientHandler implements CompletionHandler<Integer, Object> {
+    private static class ReadHandler implements CompletionHandler<Integer, ClientContext> {
 
-        private final AsynchronousSocketChannel clientChannel;
+        @Override
+        public void completed(Integer result, ClientContext context) {
+            if (result < 0) {
+                // 客户端断开
+                context.close();
+                return;
+            }
 
-        public ClientHandler(AsynchronousSocketChannel channel) {
-            this.clientChannel = channel;
+            context.buffer.flip();
+            context.channel.write(context.buffer, context, WRITE_HANDLER);
         }
 
-        @SuppressWarnings("unchecked")
         @Override
-        public void completed(Integer integer, Object o) {
-            Map<String, Object> info = (Map<String, Object>) o;
-            String type = (String) info.get("type");
-
-            if ("read".equals(type)) {
-                ByteBuffer buffer = (ByteBuffer) info.get("buffer");
-                buffer.flip();
-                info.put("type", "write");
-                clientChannel.write(buffer, info, this);
-            } else if ("write".equals(type)) {
-                ByteBuffer buffer = ByteBuffer.allocate(1024);
-                info.put("type", "read");
-                info.put("buffer", buffer);
-                clientChannel.read(buffer, info, this);
+        public void failed(Throwable throwable, ClientContext context) {
+            context.close();
+        }
+    }
+
+    /**
+     * 写完成：没写完就接着写，写完了复用同一个buffer读下一批数据
+     *
+     * @author yangxin
+     * 2026/10/17 16:20
+     */
+    private static class WriteHandler implements CompletionHandler<Integer, ClientContext> {
+
+        @Override
+        public void completed(Integer result, ClientContext context) {
+            if (context.buffer.hasRemaining()) {
+                context.channel.write(context.buffer, context, this);
+                return;
             }
+
+            context.buffer.clear();
+            context.channel.read(context.buffer, context, READ_HANDLER);
         }
 
         @Override
-        public void failed(Throwable throwable, Object o) {
-            // 处理错误
+        public void failed(Throwable throwable, ClientContext context) {
+            context.close();
         }
     }
 
@@ -1,16 +1,34 @@
 package org.yangxin.aio.chatroom.client;
 
+import org.yangxin.common.codec.FrameCodec;
+import org.yangxin.common.codec.FrameDecoder;
+import org.yangxin.common.file.FileCommand;
+import org.yangxin.common.file.FileReceiver;
+
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
 import java.nio.channels.AsynchronousSocketChannel;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 /**
+ * 完全由CompletionHandler驱动的客户端：连接、读、写都不阻塞调用线程，也不占用专门的线程。
+ * 多个客户端可以共用一个AsynchronousChannelGroup，一个JVM里用几个线程就能驱动上万个连接做压测。
+ * 发送是无锁的队列：任意线程把帧放进队列，同一时刻只有一个未完成的write，写完一帧由回调接着写下一帧。
+ *
  * @author yangxin
  * 2020/10/01 17:59
  */
@@ -20,19 +38,55 @@ public class ChatClient {
     private static final int DEFAULT_PORT = 8888;
     private static final String QUIT = "quit";
     private static final int BUFFER = 1024;
+    /**
+     * 收到的文件保存在这里
+     */
+    private static final Path DOWNLOAD_DIR = Paths.get("chat-downloads");
 
     private final String host;
     private final int port;
+    /**
+     * 为null时用JVM默认的通道组
+     */
+    private final AsynchronousChannelGroup group;
+    private final Consumer<String> messageListener;
     private AsynchronousSocketChannel clientChannel;
-    private final Charset charset = StandardCharsets.UTF_8;
+    private final FrameCodec codec = FrameCodec.DEFAULT;
+    private final FrameDecoder decoder = codec.newDecoder(this::handlesFrame);
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER);
+    private final ReadHandler readHandler = new ReadHandler();
+    private final WriteHandler writeHandler = new WriteHandler();
+    /**
+     * 正在接收的文件，只在读的回调里访问
+     */
+    private FileReceiver receiver;
+    /**
+     * 待发送的内容，队头是正在写的那一项
+     */
+    private final Queue<PendingWrite> writeQueue = new ConcurrentLinkedQueue<>();
+    /**
+     * 是否有一个未完成的write，抢到的线程负责发起写
+     */
+    private final AtomicBoolean writing = new AtomicBoolean();
+    private final CompletableFuture<Void> closeFuture = new CompletableFuture<>();
 
     public ChatClient() {
         this(LOCALHOST, DEFAULT_PORT);
     }
 
     public ChatClient(String host, int port) {
+        this(host, port, null, System.out::println);
+    }
+
+    /**
+     * @param group           多个客户端共用的通道组，为null时用JVM默认的通道组
+     * @param messageListener 收到的聊天消息，在通道组的线程里回调，不能阻塞
+     */
+    public ChatClient(String host, int port, AsynchronousChannelGroup group, Consumer<String> messageListener) {
         this.host = host;
         this.port = port;
+        this.group = group;
+        this.messageListener = messageListener;
     }
 
     public boolean readyToQuit(String msg) {
@@ -51,52 +105,336 @@ public class ChatClient {
         }
     }
 
-    @SuppressWarnings("InfiniteLoopStatement")
-    private void start() {
+    /**
+     * 发起连接，连上后开始读。返回的future在连接建立后完成，连接失败时异常完成
+     */
+    public CompletableFuture<Void> connect() {
+        CompletableFuture<Void> connected = new CompletableFuture<>();
         try {
-            // 创建channel
-            clientChannel = AsynchronousSocketChannel.open();
-            Future<Void> future = clientChannel.connect(new InetSocketAddress(host, port));
-            future.get();
-
-            // 处理用户的输入
-            new Thread(new UserInputHandler(this)).start();
-
-            ByteBuffer buffer = ByteBuffer.allocate(BUFFER);
-            while (true) {
-                Future<Integer> resultResult = clientChannel.read(buffer);
-                int result = resultResult.get();
-                if (result <= 0) {
-                    // 服务器异常
-                    System.out.println("服务器断开");
-                    close(clientChannel);
-                } else {
-                    buffer.flip();
-                    String msg = String.valueOf(charset.decode(buffer));
-                    buffer.clear();
-                    System.out.println(msg);
-                }
+            clientChannel = AsynchronousSocketChannel.open(group);
+        } catch (IOException e) {
+            connected.completeExceptionally(e);
+            return connected;
+        }
+
+        clientChannel.connect(new InetSocketAddress(host, port), null, new CompletionHandler<Void, Object>() {
+            @Override
+            public void completed(Void result, Object attachment) {
+                clientChannel.read(readBuffer, null, readHandler);
+                connected.complete(null);
             }
-        } catch (IOException | InterruptedException | ExecutionException e) {
+
+            @Override
+            public void failed(Throwable throwable, Object attachment) {
+                close();
+                connected.completeExceptionally(throwable);
+            }
+        });
+        return connected;
+    }
+
+    /**
+     * 连接关闭（服务器断开、读写失败或者调用了close）后完成
+     */
+    public CompletableFuture<Void> closeFuture() {
+        return closeFuture;
+    }
+
+    /**
+     * 可以在任意线程调用多次，还没发出去的内容被丢弃
+     */
+    public void close() {
+        if (!closeFuture.complete(null)) {
+            return;
+        }
+
+        close(clientChannel);
+        releaseQueued();
+    }
+
+    /**
+     * 关闭后清空发送队列，可能有多个线程同时清空，谁从队列里取出来谁负责释放
+     */
+    private void releaseQueued() {
+        PendingWrite pendingWrite;
+        while ((pendingWrite = writeQueue.poll()) != null) {
+            pendingWrite.release();
+        }
+    }
+
+    private void start() {
+        try {
+            connect().get();
+        } catch (InterruptedException | ExecutionException e) {
             e.printStackTrace();
+            return;
         }
+
+        // 处理用户的输入
+        new Thread(new UserInputHandler(this)).start();
+        // 读写都在通道组的线程里进行，主线程等连接关闭
+        closeFuture.join();
     }
 
+    /**
+     * 读完成：交给解码器，再发起下一次读
+     */
+    private class ReadHandler implements CompletionHandler<Integer, Object> {
+
+        @Override
+        public void completed(Integer result, Object attachment) {
+            if (result < 0) {
+                // 服务器异常
+                System.out.println("服务器断开");
+                close();
+                return;
+            }
+
+            readBuffer.flip();
+            try {
+                decoder.decode(readBuffer);
+            } catch (IOException e) {
+                e.printStackTrace();
+                close();
+                return;
+            }
+            readBuffer.clear();
+            clientChannel.read(readBuffer, null, this);
+        }
+
+        @Override
+        public void failed(Throwable throwable, Object attachment) {
+            if (!closeFuture.isDone()) {
+                throwable.printStackTrace();
+            }
+            close();
+        }
+    }
+
+    /**
+     * 收到"/file"通知后，接下来的帧是文件内容，写进下载目录
+     */
+    private void handlesFrame(ByteBuffer frame) throws IOException {
+        if (receiver != null) {
+            receiver.write(frame);
+            if (receiver.isComplete()) {
+                fileReceived();
+            }
+            return;
+        }
+
+        if (!frame.hasRemaining()) {
+            // 服务端的心跳是一个空帧，回一个空帧
+            write(new FrameWrite(codec.encode("")));
+            return;
+        }
+
+        String msg = FrameCodec.toString(frame);
+        FileCommand command = FileCommand.isCommand(msg) ? FileCommand.parseAnnounce(msg) : null;
+        if (command == null) {
+            messageListener.accept(msg);
+            return;
+        }
+
+        System.out.println(command.sender() + "发来文件：" + command.name() + "，" + command.size() + "字节");
+        receiver = FileReceiver.toDirectory(command, DOWNLOAD_DIR);
+        if (receiver.isComplete()) {
+            fileReceived();
+        }
+    }
+
+    private void fileReceived() {
+        System.out.println("文件已保存到：" + receiver.path().toAbsolutePath());
+        close(receiver.channel());
+        receiver = null;
+    }
+
+    /**
+     * 只放进发送队列，不等写完，可以在任意线程调用
+     */
     public void send(String msg) {
         if (msg.isEmpty()) {
             return;
         }
 
-        ByteBuffer buffer = charset.encode(msg);
-        Future<Integer> writeResult = clientChannel.write(buffer);
+        // "/file 路径"：把本地文件发给聊天室里的其他人
+        if (FileCommand.isCommand(msg)) {
+            sendFile(Paths.get(msg.substring(FileCommand.PREFIX.length())));
+            return;
+        }
+        write(new FrameWrite(codec.encode(msg)));
+    }
+
+    /**
+     * 先发"/file 大小 文件名"，文件内容在写回调里按块读出来发送，不会整个读进内存
+     */
+    private void sendFile(Path path) {
+        if (!Files.isRegularFile(path)) {
+            System.out.println("文件不存在：" + path);
+            return;
+        }
+
         try {
-            writeResult.get();
-        } catch (InterruptedException | ExecutionException e) {
-            System.out.println("发送消息失败");
+            write(new FileWrite(path, FileChannel.open(path)));
+        } catch (IOException e) {
+            System.out.println("发送文件失败");
             e.printStackTrace();
         }
     }
 
+    private void write(PendingWrite pendingWrite) {
+        if (closeFuture.isDone()) {
+            pendingWrite.release();
+            return;
+        }
+
+        writeQueue.offer(pendingWrite);
+        // close()可能在上面的检查之后、入队之前已经清空了队列，入队后再看一次
+        if (closeFuture.isDone()) {
+            releaseQueued();
+            return;
+        }
+        if (writing.compareAndSet(false, true)) {
+            writeNext();
+        }
+    }
+
+    /**
+     * 只能由持有writing的线程调用。队列空了就放下writing，放下后又有人入队而且没人接手时自己接着写
+     */
+    private void writeNext() {
+        while (true) {
+            PendingWrite head = writeQueue.peek();
+            if (head != null) {
+                clientChannel.write(head.view, head, writeHandler);
+                return;
+            }
+
+            writing.set(false);
+            if (writeQueue.isEmpty() || !writing.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 写完成：没写完就接着写，写完了看还有没有下一段（文件的下一块），都写完了就开始写队列里的下一项
+     */
+    private class WriteHandler implements CompletionHandler<Integer, PendingWrite> {
+
+        @Override
+        public void completed(Integer result, PendingWrite current) {
+            if (closeFuture.isDone()) {
+                // 关闭时已经释放了队列里的所有内容
+                return;
+            }
+
+            try {
+                if (current.view.hasRemaining() || current.next()) {
+                    clientChannel.write(current.view, current, this);
+                    return;
+                }
+            } catch (IOException e) {
+                System.out.println("发送消息失败");
+                e.printStackTrace();
+                close();
+                return;
+            }
+
+            writeQueue.poll();
+            current.release();
+            writeNext();
+        }
+
+        @Override
+        public void failed(Throwable throwable, PendingWrite current) {
+            if (!closeFuture.isDone()) {
+                System.out.println("发送消息失败");
+                throwable.printStackTrace();
+            }
+            close();
+        }
+    }
+
+    /**
+     * 发送队列里的一项，view是当前正在写的那一段
+     */
+    private abstract static class PendingWrite {
+
+        protected ByteBuffer view;
+
+        /**
+         * view写完后调用，还有下一段就放进view并返回true
+         */
+        boolean next() throws IOException {
+            return false;
+        }
+
+        void release() {
+        }
+    }
+
+    private static class FrameWrite extends PendingWrite {
+
+        FrameWrite(ByteBuffer frame) {
+            this.view = frame;
+        }
+    }
+
+    /**
+     * 要上传的文件：先写上传命令，再按块把文件读进直接内存，加上帧头发出去
+     */
+    private class FileWrite extends PendingWrite {
+
+        private final Path path;
+        private final FileChannel fileChannel;
+        private final long size;
+        private final int maxLength = FileCommand.CHUNK_SIZE - codec.headerLength(FileCommand.CHUNK_SIZE);
+        private ByteBuffer chunk;
+        private long position;
+
+        FileWrite(Path path, FileChannel fileChannel) throws IOException {
+            this.path = path;
+            this.fileChannel = fileChannel;
+            this.size = fileChannel.size();
+            this.view = codec.encode(FileCommand.upload(size, path.getFileName().toString()));
+        }
+
+        @Override
+        boolean next() throws IOException {
+            if (position == size) {
+                System.out.println("文件已发送：" + path + "，" + size + "字节");
+                return false;
+            }
+            if (chunk == null) {
+                chunk = ByteBuffer.allocateDirect(FileCommand.CHUNK_SIZE);
+            }
+
+            int length = (int) Math.min(maxLength, size - position);
+            chunk.clear();
+            codec.writeHeader(chunk, length);
+            chunk.limit(chunk.position() + length);
+            while (chunk.hasRemaining()) {
+                if (fileChannel.read(chunk) < 0) {
+                    throw new EOFException("文件被截断：" + path);
+                }
+            }
+            chunk.flip();
+            position += length;
+            view = chunk;
+            return true;
+        }
+
+        @Override
+        void release() {
+            try {
+                fileChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     public static void main(String[] args) {
         ChatClient client = new ChatClient("127.0.0.1", 7777);
         client.start();
@@ -1,45 +1,183 @@
 package org.yangxin.aio.chatroom.server;
 
+import org.yangxin.common.buffer.ByteBufferPool;
+import org.yangxin.common.buffer.SharedBuffer;
+import org.yangxin.common.bus.MessageBus;
+import org.yangxin.common.bus.RoomMessage;
+import org.yangxin.common.codec.FrameCodec;
+import org.yangxin.common.codec.FrameDecoder;
+import org.yangxin.common.file.FileCommand;
+import org.yangxin.common.file.FileReceiver;
+import org.yangxin.common.file.SharedFile;
+import org.yangxin.common.log.Logger;
+import org.yangxin.common.metrics.ChatMetrics;
+import org.yangxin.common.metrics.LatencyHistogram;
+import org.yangxin.common.metrics.MetricsExporter;
+import org.yangxin.common.metrics.QueueTimingExecutor;
+import org.yangxin.common.net.ChannelGroupMode;
+import org.yangxin.common.net.ReusePort;
+import org.yangxin.common.room.RoomCommand;
+import org.yangxin.common.room.RoomRegistry;
+import org.yangxin.common.timer.HashedWheelTimer;
+import org.yangxin.common.timer.IdleState;
+import org.yangxin.common.timer.IdleStateMonitor;
+import org.yangxin.common.user.UserCommand;
+import org.yangxin.common.user.UserDirectory;
+
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
 import java.nio.channels.AsynchronousChannelGroup;
 import java.nio.channels.AsynchronousServerSocketChannel;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
+ * 通道组的线程池可以配置：-Daio.group=fixed|cached|fork_join，-Daio.threads=线程数（默认CPU核数）。
+ * -Daio.sticky=true时每个连接固定交给一个单线程执行器处理读到的数据，连接的解码器、缓冲区一直在同一个线程的缓存里，
+ * 代价是每次读多一次线程切换。回调在线程池里的排队时间记录在group_queue_delay_nanos（粘滞模式下还有sticky_queue_delay_nanos），
+ * 用来判断线程数是否合适。
+ * 服务器不依赖标准输入，start()后在后台运行，stop()或者进程收到终止信号时关闭。
+ * 分片模式（-Dshards=K）下同一个进程里起K个实例，各自有自己的通道组，用SO_REUSEPORT绑定同一个端口，由内核分配新连接；
+ * 房间消息先发给本分片的成员，再通过MessageBus交给其他分片发给它们那边的成员，登录名在所有分片间共享。
+ *
  * @author yangxin
  * 2020/10/01 13:34
  */
 public class ChatServer {
 
+    private static final Logger LOG = Logger.getLogger(ChatServer.class);
+
     private static final String LOCALHOST = "localhost";
     private static final int DEFAULT_PORT = 8888;
     private static final String QUIT = "quit";
     private static final int BUFFER = 1024;
-    private static final int THREAD_POOL_SIZE = 8;
+    private static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+    /**
+     * stop()时等通道组的线程退出的最长时间
+     */
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 5;
+    /**
+     * 大量客户端同时连接时，默认的accept队列很容易溢出
+     */
+    private static final int BACKLOG = 1024;
+    private static final long TICK_MILLIS = 100;
+    private static final int WHEEL_SIZE = 1024;
+    /**
+     * 一次聚集写最多带多少帧
+     */
+    private static final int MAX_GATHER = 64;
 
     private AsynchronousServerSocketChannel serverChannel;
-    private final List<ClientHandler> connectedClientList;
-    private final Charset charset = StandardCharsets.UTF_8;
+    /**
+     * 并发的注册表，上下线和广播都不需要全局锁
+     */
+    private final Set<ClientHandler> connectedClients;
+    private final RoomRegistry<ClientHandler> rooms = new RoomRegistry<>();
+    private final UserDirectory<ClientHandler> users;
+    private final FrameCodec codec = FrameCodec.DEFAULT;
+    private final ByteBufferPool bufferPool = ByteBufferPool.DEFAULT;
+    private final WriteHandler writeHandler = new WriteHandler();
     private final int port;
+    /**
+     * 线程名的前缀，例如aio-chat、aio-chat-shard-0，指标的前缀是把横线换成下划线
+     */
+    private final String name;
+    private final ChannelGroupMode groupMode;
+    private final int threads;
+    private final boolean sticky;
+    /**
+     * 分片之间的总线，不分片时为null
+     */
+    private final MessageBus<RoomMessage> bus;
+    private MessageBus.Endpoint<RoomMessage> endpoint;
+    private final ChatMetrics metrics;
+    /**
+     * 读回调本身的执行时间，回调里做了解码、打印和广播入队，太慢会占住通道组的线程
+     */
+    private final LatencyHistogram readHandlerTime;
+    /**
+     * 从发起write到写回调被调用的时间，包括在内核里等待发送和回调在线程池里排队的时间
+     */
+    private final LatencyHistogram writeCompletionTime;
+    /**
+     * 完成回调从交给线程池到开始执行的时间
+     */
+    private final LatencyHistogram groupQueueDelay;
+    private ExecutorService groupExecutor;
+    private AsynchronousChannelGroup channelGroup;
+    /**
+     * 粘滞模式下每个连接固定用其中一个，不是粘滞模式时为null
+     */
+    private ExecutorService[] stickyExecutors;
+    /**
+     * 只在accept的回调里访问，同一时刻只有一个未完成的accept
+     */
+    private int nextStickyIndex;
+    private final AtomicBoolean stopped = new AtomicBoolean();
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    /**
+     * 所有连接共用一个时间轮，由一个后台线程驱动，检测任务只关连接或者把心跳放进写队列，不会阻塞
+     */
+    private final HashedWheelTimer timer = new HashedWheelTimer(TICK_MILLIS, TimeUnit.MILLISECONDS, WHEEL_SIZE);
+    /**
+     * 心跳是一个空帧，服务端一直持有一个引用，所以永远不会还给池
+     */
+    private final SharedBuffer pingFrame;
 
     public ChatServer() {
         this(DEFAULT_PORT);
     }
 
     public ChatServer(int port) {
+        this(port, ChannelGroupMode.fromSystemProperty(ChannelGroupMode.FIXED),
+                Integer.getInteger("aio.threads", DEFAULT_THREADS), Boolean.getBoolean("aio.sticky"));
+    }
+
+    /**
+     * @param groupMode 通道组的线程池
+     * @param threads   通道组的线程数，粘滞模式下也是单线程执行器的个数
+     * @param sticky    是否把每个连接固定交给一个线程处理
+     */
+    public ChatServer(int port, ChannelGroupMode groupMode, int threads, boolean sticky) {
+        this(port, "aio-chat", groupMode, threads, sticky, null, new UserDirectory<>());
+    }
+
+    /**
+     * @param bus   不为null时作为一个分片启动，用SO_REUSEPORT绑定端口
+     * @param users 所有分片共用的登录名索引
+     */
+    private ChatServer(int port, String name, ChannelGroupMode groupMode, int threads, boolean sticky,
+                       MessageBus<RoomMessage> bus, UserDirectory<ClientHandler> users) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads: " + threads);
+        }
         this.port = port;
-        this.connectedClientList = new ArrayList<>();
+        this.name = name;
+        this.groupMode = groupMode;
+        this.threads = threads;
+        this.sticky = sticky;
+        this.bus = bus;
+        this.users = users;
+        this.connectedClients = ConcurrentHashMap.newKeySet();
+        this.metrics = new ChatMetrics(name.replace('-', '_'), connectedClients::size);
+        this.readHandlerTime = metrics.registry().histogram(metrics.name("read_handler_nanos"));
+        this.writeCompletionTime = metrics.registry().histogram(metrics.name("write_completion_nanos"));
+        this.groupQueueDelay = metrics.registry().histogram(metrics.name("group_queue_delay_nanos"));
+        this.pingFrame = encodeFrame(new byte[0]);
     }
 
     private boolean readyToQuit(String msg) {
@@ -58,24 +196,117 @@ public class ChatServer {
         }
     }
 
-    @SuppressWarnings({"ResultOfMethodCallIgnored", "InfiniteLoopStatement"})
-    private void start() {
-        try {
-            ExecutorService executorService = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
-            AsynchronousChannelGroup channelGroup = AsynchronousChannelGroup.withThreadPool(executorService);
-            serverChannel = AsynchronousServerSocketChannel.open(channelGroup);
-            serverChannel.bind(new InetSocketAddress(LOCALHOST, port));
-            System.out.println("启动服务器，监听端口：" + port);
+    /**
+     * 分片模式：每个分片有自己的通道组，线程数由各个分片平分，当前线程等所有分片关闭
+     */
+    public static void startSharded(int port, int shardCount) throws InterruptedException {
+        MessageBus<RoomMessage> bus = new MessageBus<>();
+        UserDirectory<ClientHandler> users = new UserDirectory<>();
+        ChannelGroupMode groupMode = ChannelGroupMode.fromSystemProperty(ChannelGroupMode.FIXED);
+        int threads = Math.max(1, Integer.getInteger("aio.threads", DEFAULT_THREADS) / shardCount);
+        boolean sticky = Boolean.getBoolean("aio.sticky");
+        ChatServer[] shards = new ChatServer[shardCount];
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            for (ChatServer shard : shards) {
+                if (shard != null) {
+                    shard.stop();
+                }
+            }
+        }, "aio-chat-shutdown"));
 
-            while (true) {
-                serverChannel.accept(null, new AcceptHandler());
-                System.in.read();
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new ChatServer(port, "aio-chat-shard-" + i, groupMode, threads, sticky, bus, users);
+            try {
+                shards[i].start();
+            } catch (IOException e) {
+                e.printStackTrace();
+                shards[i].stop();
+            }
+        }
+        for (ChatServer shard : shards) {
+            shard.awaitTermination();
+        }
+    }
+
+    /**
+     * 绑定端口并开始accept，之后的事情都在通道组的线程里进行，不阻塞当前线程
+     */
+    public void start() throws IOException {
+        ExecutorService executor = groupMode.newExecutor(threads, name + "-group");
+        groupExecutor = new QueueTimingExecutor(executor, groupQueueDelay);
+        channelGroup = groupMode.newGroup(groupExecutor, threads);
+        if (sticky) {
+            LatencyHistogram stickyQueueDelay = metrics.registry().histogram(metrics.name("sticky_queue_delay_nanos"));
+            stickyExecutors = new ExecutorService[threads];
+            for (int i = 0; i < threads; i++) {
+                String threadName = name + "-sticky-" + i;
+                stickyExecutors[i] = new QueueTimingExecutor(
+                        Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, threadName)),
+                        stickyQueueDelay);
+            }
+        }
+
+        serverChannel = AsynchronousServerSocketChannel.open(channelGroup);
+        if (bus != null) {
+            ReusePort.enable(serverChannel);
+            endpoint = bus.join(groupExecutor, this::deliver);
+        }
+        serverChannel.bind(new InetSocketAddress(LOCALHOST, port), BACKLOG);
+        LOG.info("启动服务器，监听端口：{}，通道组：{}，线程数：{}，粘滞：{}", port, groupMode, threads, sticky);
+        MetricsExporter.expose(metrics.registry());
+        timer.start(name + "-idle-timer");
+        serverChannel.accept(null, new AcceptHandler());
+    }
+
+    /**
+     * 关闭监听和所有连接，等通道组的线程退出，可以在任意线程调用多次
+     */
+    public void stop() {
+        if (!stopped.compareAndSet(false, true)) {
+            return;
+        }
+
+        if (endpoint != null) {
+            endpoint.leave();
+        }
+        close(serverChannel);
+        timer.stop();
+        MetricsExporter.unexpose(metrics.registry());
+        try {
+            if (channelGroup != null) {
+                // 关闭组里所有的通道，未完成的读写以失败结束
+                channelGroup.shutdownNow();
+                channelGroup.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
             }
         } catch (IOException e) {
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } finally {
-            close(serverChannel);
+            if (stickyExecutors != null) {
+                for (ExecutorService executor : stickyExecutors) {
+                    executor.shutdownNow();
+                }
+            }
+            LOG.info("服务器已关闭，回调排队时间：{}", groupQueueDelay.summary(TimeUnit.MICROSECONDS));
+            terminated.countDown();
+        }
+    }
+
+    public void awaitTermination() throws InterruptedException {
+        terminated.await();
+    }
+
+    /**
+     * 轮流分配，只在accept的回调里调用
+     */
+    private Executor nextStickyExecutor() {
+        if (stickyExecutors == null) {
+            return null;
         }
+        Executor executor = stickyExecutors[nextStickyIndex];
+        nextStickyIndex = (nextStickyIndex + 1) % stickyExecutors.length;
+        return executor;
     }
 
     /**
@@ -90,29 +321,46 @@ public class ChatServer {
                 serverChannel.accept(null, this);
             }
             if (clientChannel != null && clientChannel.isOpen()) {
-                ClientHandler handler = new ClientHandler(clientChannel);
-                ByteBuffer buffer = ByteBuffer.allocate(BUFFER);
+                ClientHandler handler = new ClientHandler(clientChannel, nextStickyExecutor());
                 // 将新用户添加到在线用户列表
                 addClient(handler);
-                clientChannel.read(buffer, buffer, handler);
+                clientChannel.read(handler.readBuffer, handler.readBuffer, handler);
             }
         }
 
         @Override
         public void failed(Throwable throwable, Object o) {
-            System.out.println("连接失败：" + throwable);
+            if (!stopped.get()) {
+                LOG.warn("连接失败：{}", throwable);
+            }
         }
     }
 
-    private synchronized void addClient(ClientHandler handler) {
-        connectedClientList.add(handler);
-        System.out.println(getClientName(handler.clientChannel) + "已连接到服务器");
+    private void addClient(ClientHandler handler) {
+        connectedClients.add(handler);
+        rooms.join(handler, RoomRegistry.LOBBY);
+        LOG.info("{}已连接到服务器", handler.name);
+        handler.idle.start();
     }
 
-    private synchronized void removeClient(ClientHandler handler) {
-        connectedClientList.remove(handler);
-        System.out.println(getClientName(handler.clientChannel) + "已断开连接");
+    /**
+     * 只在读的回调里调用，这时连接上没有未完成的read，读缓冲区可以安全地还给池
+     */
+    private void removeClient(ClientHandler handler) {
+        if (!connectedClients.remove(handler)) {
+            return;
+        }
+        rooms.leave(handler);
+        users.unregister(handler.loginName, handler);
+
+        LOG.info("{}已断开连接", handler.name);
+        handler.idle.stop();
         close(handler.clientChannel);
+        handler.releasePendingWrites();
+        bufferPool.release(handler.readBuffer);
+        if (handler.receiver != null) {
+            handler.receiver.abort();
+        }
     }
 
     /**
@@ -122,28 +370,227 @@ public class ChatServer {
     private class ClientHandler implements CompletionHandler<Integer, Object> {
 
         private final AsynchronousSocketChannel clientChannel;
+        private final FrameDecoder decoder;
+        private final ByteBuffer readBuffer;
+        private final IdleStateMonitor idle;
+        private final Executor stickyExecutor;
+        /**
+         * 待发送的帧，队头的inFlight项是正在写的。同一个连接同一时刻只能有一个未完成的write，
+         * 写的过程中来的消息在这里排队，上一次写完后一起用一次聚集写发出去。
+         */
+        private final Queue<PendingWrite> writeQueue = new ArrayDeque<>();
+        private final ByteBuffer[] gatherBuffers = new ByteBuffer[MAX_GATHER];
+        private int inFlight;
+        private boolean writing;
+        private boolean closed;
+        private boolean quit;
+        /**
+         * 当前这次write发起的时间，同一时刻只有一个未完成的write
+         */
+        private long writeStartNanos;
+        /**
+         * 正在上传的文件，只在读的回调里访问
+         */
+        private FileReceiver receiver;
+        /**
+         * 别人看到的名字，连接建立时查一次远端地址，登录后换成登录名，转发时不用再查地址和拼字符串
+         */
+        private volatile String name;
+        /**
+         * 登录名，没登录时为null，只在读的回调里访问
+         */
+        private String loginName;
 
-        public ClientHandler(AsynchronousSocketChannel clientChannel) {
+        /**
+         * @param stickyExecutor 粘滞模式下处理这个连接读到的数据的线程，否则为null，直接在回调里处理
+         */
+        public ClientHandler(AsynchronousSocketChannel clientChannel, Executor stickyExecutor) {
             this.clientChannel = clientChannel;
+            this.stickyExecutor = stickyExecutor;
+            this.name = getClientName(clientChannel);
+            this.decoder = codec.newDecoder(this::handlesFrame);
+            this.readBuffer = bufferPool.acquire(BUFFER);
+            this.idle = new IdleStateMonitor(timer, this::handlesIdle);
+        }
+
+        /**
+         * 在时间轮的线程里执行。读空闲就关闭连接，未完成的read会失败，由读的回调把客户端移除；写空闲就发一个心跳
+         */
+        private void handlesIdle(IdleState state) {
+            if (state == IdleState.READER_IDLE) {
+                LOG.info("{}{}秒没有数据，断开连接", name, IdleStateMonitor.READ_IDLE_SECONDS);
+                close(clientChannel);
+            } else {
+                write(new FrameWrite(pingFrame.retain()));
+            }
         }
 
+        /**
+         * 可以在任意线程调用，上一次写还没完成时只入队
+         */
+        private void write(PendingWrite pendingWrite) {
+            synchronized (this) {
+                if (closed) {
+                    pendingWrite.release();
+                    return;
+                }
+                writeQueue.offer(pendingWrite);
+                if (writing) {
+                    return;
+                }
+                writing = true;
+            }
+            issueWrite();
+        }
+
+        /**
+         * 把队头连续的帧（最多MAX_GATHER个）放进一次聚集写，文件单独写。只能由持有writing的线程调用。
+         */
+        private void issueWrite() {
+            int count = 0;
+            synchronized (this) {
+                if (closed) {
+                    // 上一次写剩下的半帧还在队头，关闭时因为writing没有释放，这里释放
+                    releaseInFlight();
+                    return;
+                }
+                for (PendingWrite pendingWrite : writeQueue) {
+                    if (count == MAX_GATHER || (count > 0 && !pendingWrite.gatherable())) {
+                        break;
+                    }
+                    gatherBuffers[count++] = pendingWrite.view;
+                    if (!pendingWrite.gatherable()) {
+                        break;
+                    }
+                }
+                inFlight = count;
+            }
+            writeStartNanos = System.nanoTime();
+            clientChannel.write(gatherBuffers, 0, count, 0, TimeUnit.MILLISECONDS, this, writeHandler);
+        }
+
+        /**
+         * 上一次write完成：释放写完的帧，文件写完一段就换下一段，剩下没写完的和新来的帧一起再写
+         */
+        private void writeCompleted() {
+            while (true) {
+                PendingWrite current;
+                synchronized (this) {
+                    if (closed) {
+                        releaseInFlight();
+                        return;
+                    }
+                    if (inFlight == 0) {
+                        break;
+                    }
+                    current = writeQueue.peek();
+                }
+                if (current.view.hasRemaining()) {
+                    break;
+                }
+
+                boolean more;
+                try {
+                    more = current.next();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    writeFailed();
+                    return;
+                }
+                if (more) {
+                    break;
+                }
+                synchronized (this) {
+                    writeQueue.poll();
+                    inFlight--;
+                }
+                current.release();
+            }
+
+            synchronized (this) {
+                if (writeQueue.isEmpty()) {
+                    writing = false;
+                    return;
+                }
+            }
+            issueWrite();
+        }
+
+        private void writeFailed() {
+            synchronized (this) {
+                releaseInFlight();
+            }
+            releasePendingWrites();
+            // 关闭连接后未完成的read会失败，由读的回调把客户端移除
+            close(clientChannel);
+        }
+
+        private void releaseInFlight() {
+            for (; inFlight > 0; inFlight--) {
+                writeQueue.poll().release();
+            }
+            writing = false;
+        }
+
+        /**
+         * 释放还没开始写的帧，正在写的几帧由写回调自己释放
+         */
+        private synchronized void releasePendingWrites() {
+            closed = true;
+            int keep = writing ? inFlight : 0;
+            Iterator<PendingWrite> iterator = writeQueue.iterator();
+            for (int i = 0; iterator.hasNext(); i++) {
+                PendingWrite pendingWrite = iterator.next();
+                if (i >= keep) {
+                    pendingWrite.release();
+                    iterator.remove();
+                }
+            }
+        }
+
+        /**
+         * 下一次read在处理完这次读到的数据后才发起，所以粘滞模式下同一个连接的任务不会同时执行
+         */
         @Override
         public void completed(Integer result, Object attachment) {
-            ByteBuffer buffer = (ByteBuffer) attachment;
+            if (stickyExecutor == null) {
+                handlesRead(result, (ByteBuffer) attachment);
+            } else {
+                stickyExecutor.execute(() -> handlesRead(result, (ByteBuffer) attachment));
+            }
+        }
+
+        private void handlesRead(Integer result, ByteBuffer buffer) {
+            long start = System.nanoTime();
+            try {
+                readCompleted(result, buffer);
+            } finally {
+                readHandlerTime.record(System.nanoTime() - start);
+            }
+        }
+
+        private void readCompleted(Integer result, ByteBuffer buffer) {
             if (buffer != null) {
                 if (result <= 0) {
                     // 客户端异常
                     // 将客户端移除在线客户列表
                     removeClient(this);
                 } else {
+                    metrics.bytesIn().add(result);
+                    idle.readActivity();
+                    // 一次读到的数据可能是半个帧，也可能是好几个帧
                     buffer.flip();
-                    String forwardMsg = receive(buffer);
-                    System.out.println(getClientName(clientChannel) + ": " + forwardMsg);
-                    forwardMessage(clientChannel, forwardMsg);
+                    try {
+                        decoder.decode(buffer);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        removeClient(this);
+                        return;
+                    }
                     buffer.clear();
 
                     // 检查用户是否退出
-                    if (readyToQuit(forwardMsg)) {
+                    if (quit) {
                         removeClient(this);
                     } else {
                         clientChannel.read(buffer, buffer, this);
@@ -152,25 +599,333 @@ public class ChatServer {
             }
         }
 
+        /**
+         * 正在上传文件时，帧是文件内容，否则是文本消息
+         */
+        private void handlesFrame(ByteBuffer frame) throws IOException {
+            if (receiver != null) {
+                receiver.write(frame);
+                if (receiver.isComplete()) {
+                    FileReceiver completed = receiver;
+                    receiver = null;
+                    shareFile(this, completed);
+                }
+                return;
+            }
+
+            String forwardMsg = FrameCodec.toString(frame);
+            if (quit || forwardMsg.isEmpty()) {
+                return;
+            }
+            metrics.messagesIn().increment();
+
+            if (FileCommand.isCommand(forwardMsg)) {
+                FileCommand command = FileCommand.parseUpload(forwardMsg);
+                if (command == null) {
+                    // 后面跟着的文件内容没法和文本消息区分，只能断开
+                    throw new IOException("无效的文件命令：" + forwardMsg);
+                }
+                receiver = FileReceiver.toTempFile(command);
+                if (receiver.isComplete()) {
+                    FileReceiver completed = receiver;
+                    receiver = null;
+                    shareFile(this, completed);
+                }
+                return;
+            }
+
+            if (RoomCommand.isCommand(forwardMsg)) {
+                handlesRoomCommand(forwardMsg);
+                return;
+            }
+            if (UserCommand.isLogin(forwardMsg)) {
+                handlesLogin(forwardMsg);
+                return;
+            }
+            if (UserCommand.isDirect(forwardMsg)) {
+                handlesDirectMessage(forwardMsg);
+                return;
+            }
+
+            // 只入队模板和参数，拼接和输出在日志线程里做
+            LOG.info("{}: {}", name, forwardMsg);
+            forwardMessage(this, forwardMsg);
+            quit = readyToQuit(forwardMsg);
+        }
+
+        /**
+         * 进出房间，结果只回给发命令的人
+         */
+        private void handlesRoomCommand(String msg) {
+            RoomCommand command = RoomCommand.parse(msg);
+            if (command == null) {
+                reply(RoomCommand.usage());
+                return;
+            }
+
+            rooms.join(this, command.room());
+            LOG.info("{}进入房间：{}", name, command.room());
+            reply(RoomCommand.reply(command.room()));
+        }
+
+        /**
+         * 先用putIfAbsent占住新名字，成功后再放掉旧名字，同名登录只有一个能成功
+         */
+        private void handlesLogin(String msg) {
+            String newName = UserCommand.parseLogin(msg);
+            if (newName == null) {
+                reply(UserCommand.loginUsage());
+                return;
+            }
+            if (!users.register(newName, this)) {
+                reply("名字已被占用：" + newName);
+                return;
+            }
+
+            if (!newName.equals(loginName)) {
+                users.unregister(loginName, this);
+            }
+            LOG.info("{}登录为：{}", name, newName);
+            loginName = newName;
+            name = newName;
+            reply("登录成功：" + newName);
+        }
+
+        /**
+         * 按名字在索引里找到接收者，直接放进它的写队列，不经过房间
+         */
+        private void handlesDirectMessage(String msg) {
+            UserCommand command = UserCommand.parseDirect(msg);
+            if (command == null) {
+                reply(UserCommand.directUsage());
+                return;
+            }
+            ClientHandler target = users.lookup(command.target());
+            if (target == null) {
+                reply("用户不在线：" + command.target());
+                return;
+            }
+
+            byte[] payload = UserCommand.direct(name, command.text()).getBytes(FrameCodec.CHARSET);
+            target.write(new FrameWrite(encodeFrame(payload)));
+            metrics.messagesOut().increment();
+        }
+
+        /**
+         * 只回给这个连接的提示
+         */
+        private void reply(String msg) {
+            write(new FrameWrite(encodeFrame(msg.getBytes(FrameCodec.CHARSET))));
+        }
+
         @Override
         public void failed(Throwable throwable, Object o) {
-            System.out.println("读写失败：" + throwable);
+            if (!stopped.get()) {
+                LOG.warn("读写失败：{}", throwable);
+            }
+            removeClient(this);
+        }
+    }
+
+    /**
+     * 所有连接共用的写回调，attachment是目标连接
+     *
+     * @author yangxin
+     * 2026/10/17 15:10
+     */
+    private class WriteHandler implements CompletionHandler<Long, ClientHandler> {
+
+        @Override
+        public void completed(Long result, ClientHandler handler) {
+            writeCompletionTime.record(System.nanoTime() - handler.writeStartNanos);
+            metrics.bytesOut().add(result);
+            if (result > 0) {
+                handler.idle.writeActivity();
+            }
+            handler.writeCompleted();
+        }
+
+        @Override
+        public void failed(Throwable throwable, ClientHandler handler) {
+            LOG.warn("写入失败：{}", throwable);
+            handler.writeFailed();
+        }
+    }
+
+    /**
+     * 一个连接上排队待写的内容，view是当前正在写的那一段
+     */
+    private abstract static class PendingWrite {
+
+        protected ByteBuffer view;
+
+        /**
+         * view写完后调用，还有下一段就放进view并返回true
+         */
+        boolean next() throws IOException {
+            return false;
+        }
+
+        /**
+         * 只有一段的内容可以和相邻的帧放进同一次聚集写
+         */
+        boolean gatherable() {
+            return true;
+        }
+
+        abstract void release();
+    }
+
+    /**
+     * 广播的一帧，view是这个连接自己的读位置
+     */
+    private static class FrameWrite extends PendingWrite {
+
+        private final SharedBuffer frame;
+
+        FrameWrite(SharedBuffer frame) {
+            this.frame = frame;
+            this.view = frame.view();
+        }
+
+        @Override
+        void release() {
+            frame.release();
         }
     }
 
-    private synchronized void forwardMessage(AsynchronousSocketChannel clientChannel, String forwardMsg) {
-        for (ClientHandler handler : connectedClientList) {
-            if (!clientChannel.equals(handler.clientChannel)) {
+    /**
+     * 分享给一个连接的文件：先写通知帧，再按块从文件读进池化的直接内存，加上帧头写出去，文件内容不经过堆。
+     * AIO没有transferTo，这是分块的等价做法。每个连接一个，共享同一个SharedFile，各自记录进度。
+     */
+    private class FileWrite extends PendingWrite {
+
+        private final ClientHandler handler;
+        private final SharedFile file;
+        private ByteBuffer chunk;
+        private long position;
+
+        FileWrite(ClientHandler handler, SharedFile file, ByteBuffer announce) {
+            this.handler = handler;
+            this.file = file;
+            this.view = announce;
+        }
+
+        @Override
+        boolean gatherable() {
+            return false;
+        }
+
+        @Override
+        boolean next() throws IOException {
+            if (position == file.size()) {
+                LOG.info("{}已收到文件：{}，{}/{}字节", handler.name, file.name(), position,
+                        file.size());
+                return false;
+            }
+            if (chunk == null) {
+                chunk = bufferPool.acquire(FileCommand.CHUNK_SIZE);
+            }
+
+            // 整块放进一个池化buffer，帧头也算在里面
+            int length = (int) Math.min(FileCommand.CHUNK_SIZE - codec.headerLength(FileCommand.CHUNK_SIZE),
+                    file.size() - position);
+            int headerLength = codec.headerLength(length);
+            chunk.clear();
+            chunk.position(headerLength);
+            chunk.limit(headerLength + length);
+            while (chunk.hasRemaining()) {
+                if (file.channel().read(chunk, position + chunk.position() - headerLength) < 0) {
+                    throw new EOFException("文件被截断：" + file.name());
+                }
+            }
+            chunk.position(0);
+            codec.writeHeader(chunk, length);
+            chunk.position(0);
+
+            position += length;
+            view = chunk;
+            return true;
+        }
+
+        @Override
+        void release() {
+            file.release();
+            bufferPool.release(chunk);
+            chunk = null;
+        }
+    }
+
+    /**
+     * 消息只编码一次，放进从池里借来的直接内存，每个接收者拿到的是同一块内存的只读视图，各自维护position。
+     * 最后一个接收者写完后buffer回到池里。
+     * 只发给发送者所在房间的其他人，分片模式下再交给其他分片。不加全局锁，遍历的是房间成员的弱一致视图，广播期间进出房间的客户端可能收到也可能收不到这条消息。
+     */
+    private void forwardMessage(ClientHandler sender, String forwardMsg) {
+        String text = sender.name + ": " + forwardMsg;
+        byte[] payload = text.getBytes(FrameCodec.CHARSET);
+        // 先持有一个引用，防止前面的接收者写得太快把buffer提前还给池
+        SharedBuffer frame = encodeFrame(payload);
+        for (ClientHandler handler : rooms.roommates(sender)) {
+            if (handler != sender) {
                 try {
-                    ByteBuffer buffer = charset.encode(getClientName(handler.clientChannel) + ": " + forwardMsg);
-                    handler.clientChannel.write(buffer, null, handler);
+                    handler.write(new FrameWrite(frame.retain()));
+                    metrics.messagesOut().increment();
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
             }
         }
+        frame.release();
+        String room = rooms.roomOf(sender);
+        if (endpoint != null && room != null) {
+            endpoint.publish(new RoomMessage(room, text));
+        }
+    }
+
+    /**
+     * 在本分片通道组的线程里执行，其他分片发来的消息发给本分片这个房间里的所有人
+     */
+    private void deliver(RoomMessage message) {
+        SharedBuffer frame = encodeFrame(message.text().getBytes(FrameCodec.CHARSET));
+        for (ClientHandler handler : rooms.members(message.room())) {
+            handler.write(new FrameWrite(frame.retain()));
+            metrics.messagesOut().increment();
+        }
+        frame.release();
+    }
+
+    /**
+     * 编码进从池里借来的直接内存，返回的SharedBuffer带一个引用
+     */
+    private SharedBuffer encodeFrame(byte[] payload) {
+        ByteBuffer buffer = bufferPool.acquire(codec.headerLength(payload.length) + payload.length);
+        codec.writeFrame(buffer, payload);
+        buffer.flip();
+        return new SharedBuffer(bufferPool, buffer, 1);
+    }
+
+    /**
+     * 上传完的文件发给同一个房间的其他人，通知帧只编码一次，最后一个接收者发完后临时文件被删除
+     */
+    private void shareFile(ClientHandler sender, FileReceiver receiver) {
+        FileCommand command = receiver.command();
+        String senderName = sender.name;
+        LOG.info("{}分享了文件：{}，{}字节", senderName, command.name(), command.size());
+
+        SharedFile file = new SharedFile(receiver.channel(), command.name(), command.size(), 1);
+        ByteBuffer announce = codec.encode(FileCommand.announce(command.size(), senderName, command.name()));
+        for (ClientHandler handler : rooms.roommates(sender)) {
+            if (handler != sender) {
+                handler.write(new FileWrite(handler, file.retain(), announce.duplicate()));
+            }
+        }
+        file.release();
     }
 
+    /**
+     * 要查远端地址，每个连接只在建立时调用一次
+     */
     private String getClientName(AsynchronousSocketChannel clientChannel) {
         int clientPort = -1;
         try {
@@ -179,16 +934,24 @@ public class ChatServer {
         } catch (IOException e) {
             e.printStackTrace();
         }
-        return "客户端【" + clientPort + "】";
-    }
-
-    private String receive(ByteBuffer buffer) {
-        CharBuffer charBuffer = charset.decode(buffer);
-        return String.valueOf(charBuffer);
+        return UserCommand.defaultName(clientPort);
     }
 
     public static void main(String[] args) {
-        ChatServer server = new ChatServer(7777);
-        server.start();
+        int shards = Integer.getInteger("shards", 0);
+        try {
+            if (shards > 0) {
+                startSharded(7777, shards);
+                return;
+            }
+            ChatServer server = new ChatServer(7777);
+            Runtime.getRuntime().addShutdownHook(new Thread(server::stop, "aio-chat-shutdown"));
+            server.start();
+            server.awaitTermination();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 }
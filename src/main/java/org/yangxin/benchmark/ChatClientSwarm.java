@@ -0,0 +1,118 @@
+package org.yangxin.benchmark;
+
+import org.yangxin.aio.chatroom.client.ChatClient;
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 用AIO的ChatClient在一个JVM里模拟大量客户端：所有客户端共用一个固定线程数的通道组，连接、收发都由回调驱动，
+ * 线程数和客户端数无关。前senders个客户端按固定总速率轮流发消息，统计收到的消息数。
+ * 上万个连接时注意调大两端的文件描述符上限（ulimit -n）。
+ * 用法：ChatClientSwarm [host] [port] [clients] [senders] [messagesPerSecond] [seconds] [groupThreads]
+ *
+ * @author yangxin
+ * 2026/10/18 14:10
+ */
+public class ChatClientSwarm {
+
+    /**
+     * 同时在进行中的连接数上限，避免瞬间塞满服务端的accept队列
+     */
+    private static final int MAX_PENDING_CONNECTS = 256;
+
+    private final String host;
+    private final int port;
+    private final int clientCount;
+    private final int senders;
+    private final int messagesPerSecond;
+    private final List<ChatClient> clients = new ArrayList<>();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder connected = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    public ChatClientSwarm(String host, int port, int clientCount, int senders, int messagesPerSecond) {
+        this.host = host;
+        this.port = port;
+        this.clientCount = clientCount;
+        this.senders = Math.min(senders, clientCount);
+        this.messagesPerSecond = messagesPerSecond;
+    }
+
+    public void run(int seconds, int groupThreads) throws IOException, InterruptedException {
+        AsynchronousChannelGroup group = AsynchronousChannelGroup.withFixedThreadPool(groupThreads,
+                Executors.defaultThreadFactory());
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            long start = System.nanoTime();
+            connectAll(group);
+            System.out.printf("clients: %d, connected: %d, failed: %d, groupThreads: %d, connect time: %d ms%n",
+                    clientCount, connected.sum(), failed.sum(), groupThreads,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            if (senders == 0 || messagesPerSecond == 0) {
+                return;
+            }
+
+            AtomicLong sent = new AtomicLong();
+            long period = TimeUnit.SECONDS.toNanos(1) / messagesPerSecond;
+            scheduler.scheduleAtFixedRate(() -> {
+                long n = sent.getAndIncrement();
+                clients.get((int) (n % senders)).send("swarm-" + n);
+            }, 0, period, TimeUnit.NANOSECONDS);
+
+            long receivedBefore = received.sum();
+            TimeUnit.SECONDS.sleep(seconds);
+            scheduler.shutdownNow();
+            // 等还在路上的广播到达
+            TimeUnit.SECONDS.sleep(1);
+            long count = received.sum() - receivedBefore;
+            System.out.printf("sent: %d, received: %d, received/s: %.0f%n", sent.get(), count,
+                    (double) count / seconds);
+        } finally {
+            scheduler.shutdownNow();
+            for (ChatClient client : clients) {
+                client.close();
+            }
+            group.shutdownNow();
+        }
+    }
+
+    private void connectAll(AsynchronousChannelGroup group) throws InterruptedException {
+        Semaphore pending = new Semaphore(MAX_PENDING_CONNECTS);
+        for (int i = 0; i < clientCount; i++) {
+            ChatClient client = new ChatClient(host, port, group, msg -> received.increment());
+            clients.add(client);
+            pending.acquire();
+            client.connect().whenComplete((result, throwable) -> {
+                if (throwable == null) {
+                    connected.increment();
+                } else {
+                    failed.increment();
+                }
+                pending.release();
+            });
+        }
+        // 等最后一批连接完成
+        pending.acquire(MAX_PENDING_CONNECTS);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 7777;
+        int clients = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        int senders = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        int messagesPerSecond = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+        int seconds = args.length > 5 ? Integer.parseInt(args[5]) : 10;
+        int groupThreads = args.length > 6 ? Integer.parseInt(args[6]) : Runtime.getRuntime().availableProcessors();
+
+        new ChatClientSwarm(host, port, clients, senders, messagesPerSecond).run(seconds, groupThreads);
+    }
+}
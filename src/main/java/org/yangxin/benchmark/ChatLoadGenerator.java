@@ -0,0 +1,324 @@
+package org.yangxin.benchmark;
+
+import org.yangxin.common.codec.FrameCodec;
+import org.yangxin.common.codec.FrameDecoder;
+import org.yangxin.common.metrics.LatencyHistogram;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 聊天室负载生成器：对任意一个聊天室服务端建立N个连接，其中若干个连接按固定总速率轮流发消息，
+ * 其余连接（包括发送者自己以外的所有人）收到广播后，用消息里带的时间戳算出端到端延迟，记录到直方图里。
+ * 时间戳是按速率排好的计划发送时间而不是实际发送时间，生成器自己落后时也会如实计入延迟，避免协调遗漏。
+ * 所有连接由一个Selector线程驱动。服务端过载时可能主动断开连接（丢弃慢客户端、空闲超时），断开的连接不再发送，
+ * 也不再算作接收方，断开的次数单独报告。
+ * 用法：ChatLoadGenerator [host] [port] [connections] [senders] [messagesPerSecond] [messageSize]
+ * [warmupSeconds] [seconds] [reportFile]
+ *
+ * @author yangxin
+ * 2026/10/17 21:30
+ */
+public class ChatLoadGenerator {
+
+    private static final int MAX_PENDING_CONNECTS = 256;
+    private static final String MARKER = "bench-lat-";
+    /**
+     * 停止发送后再等这么久，让还在路上的广播到达
+     */
+    private static final long DRAIN_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    private final InetSocketAddress address;
+    private final int connections;
+    private final int senders;
+    private final int messagesPerSecond;
+    private final int messageSize;
+    private final FrameCodec codec = FrameCodec.DEFAULT;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    private final List<Connection> connectionList = new ArrayList<>();
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private Selector selector;
+    /**
+     * 计划发送时间早于它的消息不计入结果
+     */
+    private long measureStart;
+    private long sent;
+    /**
+     * 每条计入结果的消息发出时还连着的其他连接数之和
+     */
+    private long expected;
+    private long received;
+    private int liveConnections;
+    private long disconnects;
+
+    public ChatLoadGenerator(InetSocketAddress address, int connections, int senders, int messagesPerSecond,
+                             int messageSize) {
+        this.address = address;
+        this.connections = connections;
+        this.senders = Math.min(senders, connections);
+        this.messagesPerSecond = messagesPerSecond;
+        this.messageSize = messageSize;
+    }
+
+    public String run(int warmupSeconds, int seconds) throws IOException {
+        selector = Selector.open();
+        try {
+            connectAll();
+            // 等服务端把所有连接都注册好
+            poll(System.nanoTime() + TimeUnit.SECONDS.toNanos(1));
+
+            long start = System.nanoTime();
+            measureStart = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+            long end = measureStart + TimeUnit.SECONDS.toNanos(seconds);
+            long interval = TimeUnit.SECONDS.toNanos(1) / messagesPerSecond;
+            long nextSend = start;
+            int nextSender = 0;
+            while (nextSend < end) {
+                long now = System.nanoTime();
+                // 落后时连续补发，计划时间不变
+                while (nextSend <= now && nextSend < end) {
+                    // 跳过已经断开的发送者，全都断开时这个时间点不发
+                    for (int i = 0; i < senders; i++) {
+                        Connection sender = connectionList.get(nextSender);
+                        nextSender = (nextSender + 1) % senders;
+                        if (!sender.closed) {
+                            send(sender, nextSend);
+                            break;
+                        }
+                    }
+                    nextSend += interval;
+                }
+                poll(Math.min(nextSend, end));
+            }
+            poll(System.nanoTime() + DRAIN_NANOS);
+
+            return report(warmupSeconds, seconds);
+        } finally {
+            for (Connection connection : connectionList) {
+                connection.channel.close();
+            }
+            selector.close();
+        }
+    }
+
+    private void connectAll() throws IOException {
+        int started = 0;
+        int connected = 0;
+        int pending = 0;
+        while (connected < connections) {
+            while (started < connections && pending < MAX_PENDING_CONNECTS) {
+                SocketChannel channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                Connection connection = new Connection(channel);
+                connection.key = channel.register(selector, SelectionKey.OP_CONNECT, connection);
+                channel.connect(address);
+                connectionList.add(connection);
+                started++;
+                pending++;
+            }
+
+            selector.select(1000);
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                if (key.isConnectable()) {
+                    ((SocketChannel) key.channel()).finishConnect();
+                    key.interestOps(SelectionKey.OP_READ);
+                    pending--;
+                    connected++;
+                    liveConnections++;
+                }
+            }
+        }
+    }
+
+    /**
+     * 消息内容是标记加计划发送时间，再用'x'补到messageSize
+     */
+    private void send(Connection connection, long scheduledNanos) throws IOException {
+        StringBuilder msg = new StringBuilder(messageSize).append(MARKER).append(scheduledNanos).append(' ');
+        while (msg.length() < messageSize) {
+            msg.append('x');
+        }
+        if (scheduledNanos >= measureStart) {
+            sent++;
+            expected += liveConnections - 1;
+        }
+        connection.write(codec.encode(msg.toString()));
+    }
+
+    /**
+     * 处理网络事件直到deadline
+     */
+    private void poll(long deadline) throws IOException {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                Connection connection = (Connection) key.attachment();
+                try {
+                    if (key.isValid() && key.isWritable()) {
+                        connection.flush();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        connection.read();
+                    }
+                } catch (IOException e) {
+                    // 被服务端重置的连接
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    private void onFrame(Connection connection, ByteBuffer frame) throws IOException {
+        if (!frame.hasRemaining()) {
+            // 服务端的心跳，回一个空帧，否则只收不发的连接会因为读空闲被断开
+            connection.write(codec.encode(""));
+            return;
+        }
+
+        long now = System.nanoTime();
+        String msg = FrameCodec.toString(frame);
+        int index = msg.indexOf(MARKER);
+        if (index < 0) {
+            return;
+        }
+
+        int begin = index + MARKER.length();
+        int end = msg.indexOf(' ', begin);
+        long scheduledNanos = Long.parseLong(end < 0 ? msg.substring(begin) : msg.substring(begin, end));
+        if (scheduledNanos >= measureStart) {
+            received++;
+            histogram.record(now - scheduledNanos);
+        }
+    }
+
+    /**
+     * 期望的投递数按每条消息发出时还连着的连接数计算，断开的连接不算丢失
+     */
+    private String report(int warmupSeconds, int seconds) {
+        return String.format("server: %s, connections: %d, senders: %d, messageSize: %d, warmup: %ds, duration: %ds%n"
+                        + "target rate: %d msg/s, sent: %d, deliveries: %d/%d (%.2f%%), deliveries/s: %.0f, "
+                        + "disconnects: %d%n"
+                        + "broadcast latency: %s%n",
+                address, connections, senders, messageSize, warmupSeconds, seconds,
+                messagesPerSecond, sent, received, expected, expected == 0 ? 0 : received * 100.0 / expected,
+                (double) received / seconds, disconnects, histogram.summary(TimeUnit.MICROSECONDS));
+    }
+
+    /**
+     * 一个连接的解码器和没写完的数据
+     */
+    private class Connection {
+
+        private final SocketChannel channel;
+        private final FrameDecoder decoder = codec.newDecoder(frame -> onFrame(this, frame));
+        private final Queue<ByteBuffer> pendingWrites = new ArrayDeque<>();
+        private SelectionKey key;
+        /**
+         * 服务端断开后为true，之后的写都丢弃
+         */
+        private boolean closed;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void write(ByteBuffer frame) throws IOException {
+            if (closed) {
+                return;
+            }
+            pendingWrites.offer(frame);
+            try {
+                flush();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void flush() throws IOException {
+            ByteBuffer buffer;
+            while ((buffer = pendingWrites.peek()) != null) {
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                pendingWrites.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        void read() throws IOException {
+            int read;
+            while ((read = channel.read(readBuffer)) > 0) {
+                readBuffer.flip();
+                decoder.decode(readBuffer);
+                readBuffer.clear();
+            }
+            if (read < 0) {
+                close();
+            }
+        }
+
+        /**
+         * 服务端断开时调用，计入disconnects
+         */
+        void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            liveConnections--;
+            disconnects++;
+            pendingWrites.clear();
+            key.cancel();
+            channel.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 8888;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int senders = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        int messagesPerSecond = args.length > 4 ? Integer.parseInt(args[4]) : 100;
+        int messageSize = args.length > 5 ? Integer.parseInt(args[5]) : 64;
+        int warmupSeconds = args.length > 6 ? Integer.parseInt(args[6]) : 3;
+        int seconds = args.length > 7 ? Integer.parseInt(args[7]) : 10;
+
+        String report = new ChatLoadGenerator(new InetSocketAddress(host, port), connections, senders,
+                messagesPerSecond, messageSize).run(warmupSeconds, seconds);
+        System.out.print(report);
+
+        if (args.length > 8) {
+            // 追加写入，同一个文件里可以攒下多次运行的结果方便对比
+            try (PrintStream out = new PrintStream(Files.newOutputStream(Paths.get(args[8]),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND),
+                    true, StandardCharsets.UTF_8.name())) {
+                out.println(report);
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package org.yangxin.benchmark;
+
+import org.yangxin.common.codec.FrameCodec;
+import org.yangxin.common.codec.FrameDecoder;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 连接数扩展性测试：对任意一个聊天室服务端建立N个连接，大部分时间保持空闲，
+ * 然后让其中一个连接发广播，测量服务端把一条消息扇出到其余N-1个连接需要多久。
+ * 三个服务端都使用FrameCodec，所以同一个测试可以直接对比BIO、NIO、AIO。
+ * 所有连接都由一个Selector线程驱动，客户端自身不会成为连接数的瓶颈。
+ * 用法：ConnectionScaleBenchmark [host] [port] [connections] [rounds]
+ *
+ * @author yangxin
+ * 2026/10/17 17:05
+ */
+public class ConnectionScaleBenchmark {
+
+    /**
+     * 同时处于握手中的连接数上限，避免把服务端的accept队列打满
+     */
+    private static final int MAX_PENDING_CONNECTS = 256;
+    private static final long ROUND_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final String MARKER = "bench-round-";
+
+    private final InetSocketAddress address;
+    private final int connections;
+    private final FrameCodec codec = FrameCodec.DEFAULT;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    private final List<SocketChannel> channels = new ArrayList<>();
+    private Selector selector;
+    private int currentRound = -1;
+    private int received;
+
+    public ConnectionScaleBenchmark(InetSocketAddress address, int connections) {
+        this.address = address;
+        this.connections = connections;
+    }
+
+    public void run(int rounds) throws IOException {
+        selector = Selector.open();
+        try {
+            long start = System.nanoTime();
+            connectAll();
+            long connectNanos = System.nanoTime() - start;
+            System.out.printf("connections: %d, connect time: %d ms%n", connections,
+                    TimeUnit.NANOSECONDS.toMillis(connectNanos));
+
+            // 等服务端把所有连接都注册好，否则前几轮会漏掉还没注册的连接
+            drain(TimeUnit.SECONDS.toNanos(2));
+
+            long totalNanos = 0;
+            long maxNanos = 0;
+            int completed = 0;
+            for (int round = 0; round < rounds; round++) {
+                long nanos = broadcastRound(round);
+                if (nanos < 0) {
+                    System.out.printf("round %d: timeout, received %d/%d%n", round, received, connections - 1);
+                    continue;
+                }
+                completed++;
+                totalNanos += nanos;
+                maxNanos = Math.max(maxNanos, nanos);
+                System.out.printf("round %d: fan-out to %d clients in %.2f ms%n", round, received, nanos / 1e6);
+            }
+
+            if (completed > 0) {
+                double avgMillis = totalNanos / 1e6 / completed;
+                System.out.printf("fan-out avg: %.2f ms, max: %.2f ms, deliveries/s: %.0f%n",
+                        avgMillis, maxNanos / 1e6, (connections - 1) / (avgMillis / 1000));
+            }
+        } finally {
+            for (SocketChannel channel : channels) {
+                channel.close();
+            }
+            selector.close();
+        }
+    }
+
+    private void connectAll() throws IOException {
+        int started = 0;
+        int connected = 0;
+        int pending = 0;
+        while (connected < connections) {
+            while (started < connections && pending < MAX_PENDING_CONNECTS) {
+                SocketChannel channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_CONNECT);
+                channel.connect(address);
+                channels.add(channel);
+                started++;
+                pending++;
+            }
+
+            selector.select(1000);
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                if (key.isConnectable()) {
+                    SocketChannel channel = (SocketChannel) key.channel();
+                    channel.finishConnect();
+                    key.attach(codec.newDecoder(this::onFrame));
+                    key.interestOps(SelectionKey.OP_READ);
+                    pending--;
+                    connected++;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return 从发出到最后一个连接收到的纳秒数，超时返回-1
+     */
+    private long broadcastRound(int round) throws IOException {
+        currentRound = round;
+        received = 0;
+
+        ByteBuffer frame = codec.encode(MARKER + round);
+        long start = System.nanoTime();
+        SocketChannel sender = channels.get(0);
+        while (frame.hasRemaining()) {
+            sender.write(frame);
+        }
+
+        long deadline = start + ROUND_TIMEOUT_NANOS;
+        while (received < connections - 1) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return -1;
+            }
+            poll(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+        }
+        return System.nanoTime() - start;
+    }
+
+    private void drain(long nanos) throws IOException {
+        long deadline = System.nanoTime() + nanos;
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            poll(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+        }
+    }
+
+    private void poll(long timeoutMillis) throws IOException {
+        selector.select(timeoutMillis);
+        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+        while (iterator.hasNext()) {
+            SelectionKey key = iterator.next();
+            iterator.remove();
+            if (!key.isReadable()) {
+                continue;
+            }
+
+            SocketChannel channel = (SocketChannel) key.channel();
+            FrameDecoder decoder = (FrameDecoder) key.attachment();
+            int read;
+            while ((read = channel.read(readBuffer)) > 0) {
+                readBuffer.flip();
+                decoder.decode(readBuffer);
+                readBuffer.clear();
+            }
+            if (read < 0) {
+                key.cancel();
+                channel.close();
+            }
+        }
+    }
+
+    private void onFrame(ByteBuffer frame) {
+        if (currentRound >= 0 && FrameCodec.toString(frame).endsWith(MARKER + currentRound)) {
+            received++;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 8888;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+        int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+        new ConnectionScaleBenchmark(new InetSocketAddress(host, port), connections).run(rounds);
+    }
+}
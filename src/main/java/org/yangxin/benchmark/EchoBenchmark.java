@@ -0,0 +1,173 @@
+package org.yangxin.benchmark;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 回声服务器吞吐量测试：N个连接各自不停地发请求、等回复，统计每秒往返次数。
+ * 每个连接最多pipelineDepth个请求在路上，深度为1时就是一问一答，吞吐量受往返时延限制；深度越大，
+ * 一次读到的回复越多，补发的请求也一起写出去。可以给一组深度依次测，看吞吐量随深度的变化。
+ * 请求是一行：19位的序号，用'x'补到messageSize，最后是换行。回复按换行切分，行尾是原样带回的请求（BIO的Server会加前缀），
+ * 用序号核对回复的顺序。窗口内的请求加起来不要超过两端socket缓冲区的大小，否则两边可能都阻塞在写上。
+ * 用法：EchoBenchmark [host] [port] [connections] [messageSize] [warmupSeconds] [seconds] [pipelineDepths，例如1,4,16]
+ *
+ * @author yangxin
+ * 2026/10/17 16:20
+ */
+@SuppressWarnings("AlibabaAvoidManuallyCreateThread")
+public class EchoBenchmark {
+
+    private static final int SEQ_DIGITS = 19;
+
+    private final InetSocketAddress address;
+    private final int connections;
+    private final int messageSize;
+    private final int pipelineDepth;
+    private final LongAdder roundTrips = new LongAdder();
+    private volatile boolean running = true;
+
+    public EchoBenchmark(InetSocketAddress address, int connections, int messageSize) {
+        this(address, connections, messageSize, 1);
+    }
+
+    public EchoBenchmark(InetSocketAddress address, int connections, int messageSize, int pipelineDepth) {
+        if (messageSize <= SEQ_DIGITS) {
+            throw new IllegalArgumentException("messageSize至少为" + (SEQ_DIGITS + 1) + "：" + messageSize);
+        }
+        if (pipelineDepth < 1) {
+            throw new IllegalArgumentException("pipelineDepth: " + pipelineDepth);
+        }
+        this.address = address;
+        this.connections = connections;
+        this.messageSize = messageSize;
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    public void run(int warmupSeconds, int seconds) throws InterruptedException {
+        CountDownLatch finished = new CountDownLatch(connections);
+        List<Thread> threads = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    roundTrip();
+                } catch (IOException e) {
+                    if (running) {
+                        e.printStackTrace();
+                    }
+                } finally {
+                    finished.countDown();
+                }
+            }, "echo-benchmark-" + i);
+            threads.add(thread);
+            thread.start();
+        }
+
+        TimeUnit.SECONDS.sleep(warmupSeconds);
+        long start = System.nanoTime();
+        long startCount = roundTrips.sum();
+        TimeUnit.SECONDS.sleep(seconds);
+        long count = roundTrips.sum() - startCount;
+        double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+        running = false;
+        finished.await(5, TimeUnit.SECONDS);
+
+        double perSecond = count / elapsedSeconds;
+        System.out.printf("connections: %d, messageSize: %d, pipelineDepth: %d, roundTrips/s: %.0f, MB/s: %.2f%n",
+                connections, messageSize, pipelineDepth, perSecond, perSecond * messageSize * 2 / (1024 * 1024));
+    }
+
+    /**
+     * 先把窗口填满，之后每读到几个完整的回复就补发同样多个请求，一次写出去
+     */
+    private void roundTrip() throws IOException {
+        try (SocketChannel channel = SocketChannel.open(address)) {
+            channel.socket().setTcpNoDelay(true);
+            ByteBuffer requests = ByteBuffer.allocateDirect(messageSize * pipelineDepth);
+            ByteBuffer responses = ByteBuffer.allocate(Math.max(64 * 1024, messageSize * 2));
+            long nextSeq = 0;
+            long expectedSeq = 0;
+
+            for (int i = 0; i < pipelineDepth; i++) {
+                putRequest(requests, nextSeq++);
+            }
+            while (running) {
+                requests.flip();
+                while (requests.hasRemaining()) {
+                    channel.write(requests);
+                }
+                requests.clear();
+
+                if (channel.read(responses) < 0) {
+                    throw new EOFException("服务器关闭了连接");
+                }
+                responses.flip();
+                int lineStart = responses.position();
+                for (int i = lineStart; i < responses.limit(); i++) {
+                    if (responses.get(i) != '\n') {
+                        continue;
+                    }
+                    // 行尾是原样带回的请求，序号在它的开头
+                    long seq = parseSeq(responses, i - (messageSize - 1));
+                    if (seq != expectedSeq) {
+                        throw new IOException("回复乱序：期望" + expectedSeq + "，收到" + seq);
+                    }
+                    expectedSeq++;
+                    roundTrips.increment();
+                    putRequest(requests, nextSeq++);
+                    lineStart = i + 1;
+                }
+                responses.position(lineStart);
+                responses.compact();
+            }
+        }
+    }
+
+    private void putRequest(ByteBuffer requests, long seq) {
+        String digits = Long.toString(seq);
+        for (int i = digits.length(); i < SEQ_DIGITS; i++) {
+            requests.put((byte) '0');
+        }
+        for (int i = 0; i < digits.length(); i++) {
+            requests.put((byte) digits.charAt(i));
+        }
+        for (int i = SEQ_DIGITS; i < messageSize - 1; i++) {
+            requests.put((byte) 'x');
+        }
+        requests.put((byte) '\n');
+    }
+
+    private static long parseSeq(ByteBuffer responses, int index) throws IOException {
+        if (index < 0) {
+            throw new IOException("回复太短");
+        }
+        long seq = 0;
+        for (int i = index; i < index + SEQ_DIGITS; i++) {
+            seq = seq * 10 + (responses.get(i) - '0');
+        }
+        return seq;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 8888;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        int messageSize = args.length > 3 ? Integer.parseInt(args[3]) : 256;
+        int warmupSeconds = args.length > 4 ? Integer.parseInt(args[4]) : 3;
+        int seconds = args.length > 5 ? Integer.parseInt(args[5]) : 10;
+        String pipelineDepths = args.length > 6 ? args[6] : "1";
+
+        for (String depth : pipelineDepths.split(",")) {
+            EchoBenchmark benchmark = new EchoBenchmark(new InetSocketAddress(host, port), connections, messageSize,
+                    Integer.parseInt(depth.trim()));
+            benchmark.run(warmupSeconds, seconds);
+        }
+    }
+}
@@ -2,17 +2,27 @@ package org.yangxin.bio;
 
 import java.io.*;
 import java.net.Socket;
+import java.util.concurrent.Semaphore;
 
 /**
+ * 默认一问一答：发一行，等到回复再发下一行。
+ * 指定-Dpipeline=N时进入流水线模式，最多N个请求在路上，吞吐量不再受往返时延限制。
+ *
  * @author yangxin
  * 2020/09/22 20:47
  */
 public class Client {
 
+    /**
+     * 流水线模式下每行请求的前缀，后面跟序号和一个空格，服务器原样带回
+     */
+    private static final String TAG = "#";
+
     public static void main(String[] args) {
         final String quit = "quit";
         final String defaultServerHost = "127.0.0.1";
         final int defaultServerPort = 8888;
+        final int pipelineDepth = Integer.getInteger("pipeline", 1);
         Socket socket;
         BufferedWriter writer = null;
 
@@ -26,6 +36,10 @@ public class Client {
 
             // 等待用户输入信息
             BufferedReader consoleReader = new BufferedReader(new InputStreamReader(System.in));
+            if (pipelineDepth > 1) {
+                pipeline(reader, writer, consoleReader, pipelineDepth, quit);
+                return;
+            }
             while (true) {
                 String input = consoleReader.readLine();
 
@@ -55,4 +69,65 @@ public class Client {
             }
         }
     }
+
+    /**
+     * 流水线模式：不等回复就发下一行，窗口满了才等。每行带上"#序号 "，服务器按顺序回复，由单独的线程读取并核对序号。
+     * 输入里连续的多行攒在缓冲区里一起flush。输入quit或者结束时，等所有回复都到了再按普通方式发quit。
+     */
+    private static void pipeline(BufferedReader reader, BufferedWriter writer, BufferedReader consoleReader,
+                                 int depth, String quit) throws IOException {
+        Semaphore outstanding = new Semaphore(depth);
+        Thread responseReader = new Thread(() -> readResponses(reader, outstanding), "bio-client-reader");
+        responseReader.start();
+
+        try {
+            long seq = 0;
+            String input;
+            while ((input = consoleReader.readLine()) != null && !quit.equals(input)) {
+                if (!outstanding.tryAcquire()) {
+                    // 窗口满了，先把攒下的请求发出去再等回复
+                    writer.flush();
+                    outstanding.acquire();
+                }
+                writer.write(TAG + seq++ + " " + input + "\n");
+                if (!consoleReader.ready()) {
+                    writer.flush();
+                }
+            }
+            writer.flush();
+            outstanding.acquire(depth);
+
+            writer.write(quit + "\n");
+            writer.flush();
+            responseReader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 每收到一个带序号的回复就空出一个窗口，收到不带序号的回复（quit的回复）就结束
+     */
+    private static void readResponses(BufferedReader reader, Semaphore outstanding) {
+        long expected = 0;
+        try {
+            String msg;
+            while ((msg = reader.readLine()) != null) {
+                System.out.println(msg);
+                int begin = msg.indexOf(TAG);
+                if (begin < 0) {
+                    break;
+                }
+
+                long seq = Long.parseLong(msg.substring(begin + TAG.length(), msg.indexOf(' ', begin)));
+                if (seq != expected) {
+                    System.out.println("回复乱序：期望" + TAG + expected + "，收到" + TAG + seq);
+                }
+                expected = seq + 1;
+                outstanding.release();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 }
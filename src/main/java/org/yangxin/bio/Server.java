@@ -34,12 +34,16 @@ public class Server {
                     // 读取客户端发送的消息
                     System.out.println("客户端【" + socket.getPort() + "】：" + msg);
 
-                    // 回复客户发送的消息
+                    // 回复客户发送的消息，按收到的顺序回复。客户端流水线发来的多行已经在缓冲区里时先不flush，
+                    // 处理完这一批再一起写出去
                     writer.write("服务器：" + msg + "\n");
-                    writer.flush();
+                    if (!reader.ready()) {
+                        writer.flush();
+                    }
 
                     // 查看客户端是否退出
                     if (quit.equals(msg)) {
+                        writer.flush();
                         System.out.println("客户端【" + socket.getPort() + "】已断开连接");
                         break;
                     }
@@ -1,5 +1,7 @@
 package org.yangxin.bio.chatroom.client;
 
+import org.yangxin.common.codec.FrameCodec;
+
 import java.io.*;
 import java.net.Socket;
 
@@ -11,18 +13,19 @@ import java.net.Socket;
 public class ChatClient {
 
     private Socket socket;
-    private BufferedReader reader;
-    private BufferedWriter writer;
+    private InputStream reader;
+    private OutputStream writer;
+    private final FrameCodec codec = FrameCodec.DEFAULT;
 
     /**
      * 发送消息给服务器
      */
-    public void send(String msg) throws IOException {
+    public synchronized void send(String msg) throws IOException {
         if (socket.isOutputShutdown()) {
             return;
         }
 
-        writer.write(msg + "\n");
+        codec.writeFrame(writer, msg.getBytes(FrameCodec.CHARSET));
         writer.flush();
     }
 
@@ -35,7 +38,8 @@ public class ChatClient {
             return null;
         }
 
-        return reader.readLine();
+        byte[] payload = codec.readFrame(reader);
+        return payload == null ? null : new String(payload, FrameCodec.CHARSET);
     }
 
     /**
@@ -57,14 +61,19 @@ public class ChatClient {
             socket = new Socket(defaultServerHost, defaultServerPort);
 
             // 创建IO流
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            reader = new BufferedInputStream(socket.getInputStream());
+            writer = new BufferedOutputStream(socket.getOutputStream());
 
             // 处理用户的输入
             new Thread(new UserInputHandler(this)).start();
             // 读取服务器转发的消息
             String msg;
             while ((msg = receive()) != null) {
+                if (msg.isEmpty()) {
+                    // 服务端的心跳，回一个空帧
+                    send(msg);
+                    continue;
+                }
                 System.out.println(msg);
             }
         } catch (IOException e) {
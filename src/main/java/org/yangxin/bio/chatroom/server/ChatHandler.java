@@ -1,9 +1,16 @@
 package org.yangxin.bio.chatroom.server;
 
-import java.io.BufferedReader;
+import org.yangxin.common.codec.FrameCodec;
+import org.yangxin.common.log.Logger;
+import org.yangxin.common.room.RoomCommand;
+import org.yangxin.common.user.UserCommand;
+
+import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.net.Socket;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * @author yangxin
@@ -11,6 +18,8 @@ import java.net.Socket;
  */
 public class ChatHandler implements Runnable {
 
+    private static final Logger LOG = Logger.getLogger(ChatHandler.class);
+
     private final ChatServer server;
     private final Socket socket;
 
@@ -21,19 +30,42 @@ public class ChatHandler implements Runnable {
 
     @Override
     public void run() {
+        ClientConnection connection = null;
+        // 转发时只写进缓冲区还没flush的接收者
+        Set<ClientConnection> unflushed = new HashSet<>();
         try {
             // 存储新上线的用户
-            server.addClient(socket);
+            connection = server.addClient(socket);
 
             // 读取用户发送的消息
-            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            String msg;
-            while ((msg = reader.readLine()) != null) {
-                String forwardMsg = "客户端【" + socket.getPort() + "】：" + msg + "\n";
-                System.out.print(forwardMsg);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            byte[] payload;
+            while ((payload = readFrame(in, unflushed)) != null) {
+                connection.idle().readActivity();
+                if (payload.length == 0) {
+                    // 心跳的回应
+                    continue;
+                }
+                server.metrics().messagesIn().increment();
+                server.metrics().bytesIn().add(server.codec().headerLength(payload.length) + payload.length);
+                String msg = new String(payload, FrameCodec.CHARSET);
+                if (RoomCommand.isCommand(msg)) {
+                    server.handlesRoomCommand(connection, msg);
+                    continue;
+                }
+                if (UserCommand.isLogin(msg)) {
+                    server.handlesLogin(connection, msg);
+                    continue;
+                }
+                if (UserCommand.isDirect(msg)) {
+                    server.handlesDirectMessage(connection, msg);
+                    continue;
+                }
+                String forwardMsg = connection.name() + "：" + msg;
+                LOG.info("{}", forwardMsg);
 
-                // 将消息转发给聊天室里在线的其他用户
-                server.forwardMessage(socket, forwardMsg);
+                // 将消息转发给同一个房间里的其他用户
+                server.forwardMessage(connection, forwardMsg, unflushed);
 
                 // 检查用户是否准备退出
                 if (server.readyToQuit(msg)) {
@@ -43,11 +75,26 @@ public class ChatHandler implements Runnable {
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
+            server.flush(unflushed);
             try {
-                server.removeClient(socket);
+                if (connection != null) {
+                    server.removeClient(connection);
+                } else {
+                    socket.close();
+                }
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
     }
+
+    /**
+     * 发送者已经发来的消息都处理完、接下来要阻塞读时，才把转发攒下的数据写出去，一批消息对每个接收者只flush一次
+     */
+    private byte[] readFrame(InputStream in, Set<ClientConnection> unflushed) throws IOException {
+        if (in.available() == 0) {
+            server.flush(unflushed);
+        }
+        return server.codec().readFrame(in);
+    }
 }
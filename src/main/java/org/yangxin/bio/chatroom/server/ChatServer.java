@@ -1,73 +1,239 @@
 package org.yangxin.bio.chatroom.server;
 
-import java.io.BufferedWriter;
+import org.yangxin.common.codec.FrameCodec;
+import org.yangxin.common.log.Logger;
+import org.yangxin.common.metrics.ChatMetrics;
+import org.yangxin.common.metrics.MetricsExporter;
+import org.yangxin.common.room.RoomCommand;
+import org.yangxin.common.room.RoomRegistry;
+import org.yangxin.common.timer.HashedWheelTimer;
+import org.yangxin.common.timer.IdleState;
+import org.yangxin.common.timer.IdleStateMonitor;
+import org.yangxin.common.user.UserCommand;
+import org.yangxin.common.user.UserDirectory;
+
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author yangxin
  * 2020/09/24 16:48
  */
-@SuppressWarnings({"InfiniteLoopStatement", "AlibabaThreadPoolCreation"})
+@SuppressWarnings("InfiniteLoopStatement")
 public class ChatServer {
 
+    private static final Logger LOG = Logger.getLogger(ChatServer.class);
+
+    /**
+     * 大量客户端同时连接时，默认50的accept队列很容易溢出
+     */
+    private static final int BACKLOG = 1024;
+    private static final long TICK_MILLIS = 100;
+    private static final int WHEEL_SIZE = 1024;
+
+    private final ExecutionMode executionMode;
     private final ExecutorService executorService;
     private ServerSocket serverSocket;
-    private final Map<Integer, Writer> writerByPort;
+    /**
+     * 并发的注册表，上下线和广播都不需要全局锁
+     */
+    private final Set<ClientConnection> connections;
+    private final RoomRegistry<ClientConnection> rooms = new RoomRegistry<>();
+    private final UserDirectory<ClientConnection> users = new UserDirectory<>();
+    private final FrameCodec codec = FrameCodec.DEFAULT;
+    private final ChatMetrics metrics;
+    /**
+     * 所有连接共用一个时间轮。读空闲时关闭套接字，阻塞在read上的ChatHandler随之退出，把线程还给线程池
+     */
+    private final HashedWheelTimer timer = new HashedWheelTimer(TICK_MILLIS, TimeUnit.MILLISECONDS, WHEEL_SIZE);
+    /**
+     * 心跳是阻塞写，不能在时间轮的线程里做：对端不读时写会一直阻塞，时间轮就停了，所有连接的空闲检测都失效。
+     * 固定线程池的线程都被ChatHandler占着，所以单独用一个按需创建线程的池。
+     * 每个连接同一时刻最多有一个阻塞的心跳（另一个拿不到写锁直接返回），这个连接读空闲被关闭后阻塞的写抛出异常，线程随之释放。
+     */
+    private final ExecutorService pingExecutor;
 
     public ChatServer() {
-        executorService = Executors.newFixedThreadPool(10);
-        writerByPort = new HashMap<>();
+        this(ExecutionMode.FIXED_THREAD_POOL);
+    }
+
+    public ChatServer(ExecutionMode executionMode) {
+        this.executionMode = executionMode;
+        executorService = executionMode.newExecutor();
+        AtomicInteger pingThreadIndex = new AtomicInteger();
+        pingExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "bio-chat-ping-" + pingThreadIndex.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        connections = ConcurrentHashMap.newKeySet();
+        metrics = new ChatMetrics("bio_chat", connections::size);
+        // 固定线程池时，排队的连接数就是等着分配线程的客户端数；虚拟线程没有队列，这两项都是0
+        metrics.registry().gauge(metrics.name("executor_queue_depth"), () -> executorService instanceof ThreadPoolExecutor
+                ? ((ThreadPoolExecutor) executorService).getQueue().size() : 0);
+        metrics.registry().gauge(metrics.name("executor_active_threads"), () -> executorService instanceof ThreadPoolExecutor
+                ? ((ThreadPoolExecutor) executorService).getActiveCount() : 0);
+    }
+
+    public ClientConnection addClient(Socket socket) throws IOException {
+        ClientConnection connection = new ClientConnection(socket);
+        connection.idle(new IdleStateMonitor(timer, state -> handlesIdle(connection, state)));
+        connections.add(connection);
+        rooms.join(connection, RoomRegistry.LOBBY);
+        connection.idle().start();
+
+        LOG.info("{}已连接到服务器", connection.name());
+        return connection;
+    }
+
+    /**
+     * 在时间轮的线程里执行，只关闭套接字或者把心跳交给pingExecutor，不做阻塞的写
+     */
+    private void handlesIdle(ClientConnection connection, IdleState state) {
+        if (state == IdleState.READER_IDLE) {
+            LOG.info("{}{}秒没有数据，断开连接", connection.name(), IdleStateMonitor.READ_IDLE_SECONDS);
+            closeQuietly(connection);
+        } else {
+            pingExecutor.execute(() -> sendPing(connection));
+        }
+    }
+
+    private void sendPing(ClientConnection connection) {
+        try {
+            connection.trySendPing(codec);
+        } catch (IOException e) {
+            LOG.warn("{}发送心跳失败：{}", connection.name(), e);
+            closeQuietly(connection);
+        }
+    }
+
+    /**
+     * 移除对应客户端连接
+     */
+    public void removeClient(ClientConnection connection) throws IOException {
+        if (connections.remove(connection)) {
+            rooms.leave(connection);
+            users.unregister(connection.loginName(), connection);
+            // 套接字关闭，客户端那边会通过isInputShutdown知道该套接字已经被关闭，从而继续客户端下一步的业务流程
+            connection.close();
+            LOG.info("{}已断开连接", connection.name());
+        }
     }
 
-    public synchronized void addClient(Socket socket) throws IOException {
-        if (socket == null) {
+    /**
+     * 进出房间，结果只回给发命令的人
+     */
+    public void handlesRoomCommand(ClientConnection connection, String msg) throws IOException {
+        RoomCommand command = RoomCommand.parse(msg);
+        if (command == null) {
+            connection.send(codec, RoomCommand.usage().getBytes(FrameCodec.CHARSET));
             return;
         }
 
-        int port = socket.getPort();
-        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-        writerByPort.put(port, writer);
+        rooms.join(connection, command.room());
+        LOG.info("{}进入房间：{}", connection.name(), command.room());
+        connection.send(codec, RoomCommand.reply(command.room()).getBytes(FrameCodec.CHARSET));
+    }
+
+    /**
+     * 先用putIfAbsent占住新名字，成功后再放掉旧名字，同名登录只有一个能成功
+     */
+    public void handlesLogin(ClientConnection connection, String msg) throws IOException {
+        String name = UserCommand.parseLogin(msg);
+        if (name == null) {
+            connection.send(codec, UserCommand.loginUsage().getBytes(FrameCodec.CHARSET));
+            return;
+        }
+        if (!users.register(name, connection)) {
+            connection.send(codec, ("名字已被占用：" + name).getBytes(FrameCodec.CHARSET));
+            return;
+        }
 
-        System.out.println("客户端【" + port + "】已连接到服务器");
+        if (!name.equals(connection.loginName())) {
+            users.unregister(connection.loginName(), connection);
+        }
+        LOG.info("{}登录为：{}", connection.name(), name);
+        connection.login(name);
+        connection.send(codec, ("登录成功：" + name).getBytes(FrameCodec.CHARSET));
     }
 
     /**
-     * 移除对应客户端套接字
-     *
-     * @param socket 客户端套接字
+     * 按名字在索引里找到接收者，直接写给它，不经过房间
      */
-    public synchronized void removeClient(Socket socket) throws IOException {
-        if (socket == null) {
+    public void handlesDirectMessage(ClientConnection connection, String msg) throws IOException {
+        UserCommand command = UserCommand.parseDirect(msg);
+        if (command == null) {
+            connection.send(codec, UserCommand.directUsage().getBytes(FrameCodec.CHARSET));
+            return;
+        }
+        ClientConnection target = users.lookup(command.target());
+        if (target == null) {
+            connection.send(codec, ("用户不在线：" + command.target()).getBytes(FrameCodec.CHARSET));
             return;
         }
 
-        int port = socket.getPort();
-        if (writerByPort.containsKey(port)) {
-            // 套接字关闭，客户端那边会通过isInputShutdown知道该套接字已经被关闭，从而继续客户端下一步的业务流程
-            writerByPort.get(port).close();
+        byte[] payload = UserCommand.direct(connection.name(), command.text()).getBytes(FrameCodec.CHARSET);
+        try {
+            target.send(codec, payload);
+            metrics.messagesOut().increment();
+            metrics.bytesOut().add(codec.headerLength(payload.length) + payload.length);
+        } catch (IOException e) {
+            LOG.warn("{}写入失败：{}", target.name(), e);
+            closeQuietly(target);
         }
-        writerByPort.remove(port);
+    }
 
-        System.out.println("客户端【" + port + "】已断开连接");
+    /**
+     * 只发给发送者所在房间的其他人。消息只编码一次，所有接收者写出的是同一份字节。
+     * 只锁正在写的那个连接，某个接收者写失败只断开它自己，不影响其他接收者和发送者。
+     * 只写进接收者的缓冲区并记到unflushed里，发送者这一批消息都转发完后再用flush(unflushed)一起写出去。
+     */
+    public void forwardMessage(ClientConnection sender, String forwardMsg, Set<ClientConnection> unflushed) {
+        byte[] payload = forwardMsg.getBytes(FrameCodec.CHARSET);
+        for (ClientConnection connection : rooms.roommates(sender)) {
+            if (connection != sender) {
+                try {
+                    connection.write(codec, payload);
+                    unflushed.add(connection);
+                    metrics.messagesOut().increment();
+                    metrics.bytesOut().add(codec.headerLength(payload.length) + payload.length);
+                } catch (IOException e) {
+                    LOG.warn("{}写入失败：{}", connection.name(), e);
+                    closeQuietly(connection);
+                }
+            }
+        }
     }
 
-    public synchronized void forwardMessage(Socket socket, String forwardMsg) throws IOException {
-        for (Map.Entry<Integer, Writer> entry : writerByPort.entrySet()) {
-            if (!Objects.equals(entry.getKey(), socket.getPort())) {
-                Writer writer = entry.getValue();
-                writer.write(forwardMsg);
-                writer.flush();
+    /**
+     * 把转发时只写进缓冲区的连接逐个flush，每个连接一次系统调用
+     */
+    public void flush(Set<ClientConnection> unflushed) {
+        for (ClientConnection connection : unflushed) {
+            try {
+                connection.flush();
+            } catch (IOException e) {
+                LOG.warn("{}写入失败：{}", connection.name(), e);
+                closeQuietly(connection);
             }
         }
+        unflushed.clear();
+    }
+
+    private void closeQuietly(ClientConnection connection) {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     /**
@@ -77,8 +243,10 @@ public class ChatServer {
         try {
             // 绑定监听端口
             int defaultPort = 8888;
-            serverSocket = new ServerSocket(defaultPort);
-            System.out.println("启动服务器，监听端口：" + defaultPort);
+            serverSocket = new ServerSocket(defaultPort, BACKLOG);
+            LOG.info("启动服务器，监听端口：{}，执行方式：{}", defaultPort, executionMode);
+            MetricsExporter.expose(metrics.registry());
+            timer.start("bio-chat-idle-timer");
 
             while (true) {
                 // 等待客户端连接
@@ -90,9 +258,18 @@ public class ChatServer {
             e.printStackTrace();
         } finally {
             close();
+            MetricsExporter.unexpose(metrics.registry());
         }
     }
 
+    public FrameCodec codec() {
+        return codec;
+    }
+
+    public ChatMetrics metrics() {
+        return metrics;
+    }
+
     public boolean readyToQuit(String msg) {
         String quit = "quit";
         return  quit.equals(msg);
@@ -102,15 +279,25 @@ public class ChatServer {
         if (serverSocket != null)  {
             try {
                 serverSocket.close();
-                System.out.println("关闭serverSocket");
+                LOG.info("关闭serverSocket");
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
     }
 
+    /**
+     * @param args 可选的执行方式：FIXED_THREAD_POOL（默认）或VIRTUAL_THREAD
+     */
     public static void main(String[] args) {
-        ChatServer chatServer = new ChatServer();
+        ExecutionMode executionMode;
+        try {
+            executionMode = args.length > 0 ? ExecutionMode.parse(args[0]) : ExecutionMode.FIXED_THREAD_POOL;
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+        ChatServer chatServer = new ChatServer(executionMode);
         chatServer.start();
     }
 }
@@ -0,0 +1,122 @@
+package org.yangxin.bio.chatroom.server;
+
+import org.yangxin.common.codec.FrameCodec;
+import org.yangxin.common.timer.IdleStateMonitor;
+import org.yangxin.common.user.UserCommand;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 一个在线客户端的写端。
+ * 多个ChatHandler可能同时给同一个客户端转发消息，每个连接一把写锁，保证一帧的字节不会被打散；
+ * 不同连接之间互不影响。用ReentrantLock而不是synchronized，虚拟线程阻塞在写上时不会钉住载体线程。
+ *
+ * @author yangxin
+ * 2026/10/17 18:10
+ */
+public class ClientConnection {
+
+    private final Socket socket;
+    private final OutputStream writer;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private IdleStateMonitor idle;
+    /**
+     * 别人看到的名字，连接建立时算一次，登录后换成登录名
+     */
+    private volatile String name;
+    /**
+     * 登录名，没登录时为null，只在这个连接的ChatHandler线程里访问
+     */
+    private String loginName;
+
+    public ClientConnection(Socket socket) throws IOException {
+        this.socket = socket;
+        this.writer = new BufferedOutputStream(socket.getOutputStream());
+        this.name = UserCommand.defaultName(socket.getPort());
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public String loginName() {
+        return loginName;
+    }
+
+    void login(String loginName) {
+        this.loginName = loginName;
+        this.name = loginName;
+    }
+
+    public IdleStateMonitor idle() {
+        return idle;
+    }
+
+    void idle(IdleStateMonitor idle) {
+        this.idle = idle;
+    }
+
+    public void send(FrameCodec codec, byte[] payload) throws IOException {
+        writeLock.lock();
+        try {
+            codec.writeFrame(writer, payload);
+            writer.flush();
+            idle.writeActivity();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 只写进缓冲区，由调用者在这一批消息转发完后调用flush()。缓冲区满了会自己写出去。
+     */
+    public void write(FrameCodec codec, byte[] payload) throws IOException {
+        writeLock.lock();
+        try {
+            codec.writeFrame(writer, payload);
+            idle.writeActivity();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public void flush() throws IOException {
+        writeLock.lock();
+        try {
+            writer.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 发一个空帧作为心跳，有人正在写这个连接就不用发了，不等锁。
+     * 对端不读时写操作会阻塞，所以不能在时间轮的线程里调用；这种连接接下来会因为读空闲被关闭，阻塞的写随之抛出异常。
+     */
+    public void trySendPing(FrameCodec codec) throws IOException {
+        if (!writeLock.tryLock()) {
+            return;
+        }
+        try {
+            codec.writeFrame(writer, new byte[0]);
+            writer.flush();
+            idle.writeActivity();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 直接关闭套接字而不是先flush缓冲区，不用等正在写这个连接的线程，阻塞在写上的线程会收到异常
+     */
+    public void close() throws IOException {
+        if (idle != null) {
+            idle.stop();
+        }
+        socket.close();
+    }
+}
@@ -0,0 +1,92 @@
+package org.yangxin.bio.chatroom.server;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * ChatHandler的执行方式。ChatHandler始终是阻塞式的写法，区别只在于它跑在什么线程上。
+ *
+ * @author yangxin
+ * 2026/10/17 17:05
+ */
+@SuppressWarnings("AlibabaThreadPoolCreation")
+public enum ExecutionMode {
+
+    /**
+     * 固定10个平台线程，第11个客户端要排队等前面的人断开
+     */
+    FIXED_THREAD_POOL {
+        @Override
+        ExecutorService newExecutor() {
+            return Executors.newFixedThreadPool(10);
+        }
+    },
+
+    /**
+     * 每个连接一个虚拟线程，阻塞在read上的虚拟线程不占用平台线程，适合大量空闲连接。需要JDK 21及以上。
+     */
+    VIRTUAL_THREAD {
+        @Override
+        public boolean isSupported() {
+            return factoryMethod() != null;
+        }
+
+        @Override
+        ExecutorService newExecutor() {
+            Method factory = factoryMethod();
+            if (factory == null) {
+                throw new IllegalStateException(unsupportedMessage());
+            }
+            try {
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("创建虚拟线程执行器失败", e);
+            }
+        }
+
+        /**
+         * 工程按Java 8编译，只能通过反射调用JDK 21的Executors.newVirtualThreadPerTaskExecutor()
+         */
+        private Method factoryMethod() {
+            try {
+                return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            } catch (NoSuchMethodException e) {
+                return null;
+            }
+        }
+    };
+
+    /**
+     * 当前JDK能否使用这种执行方式，启动前检查，不支持时给出unsupportedMessage()
+     */
+    public boolean isSupported() {
+        return true;
+    }
+
+    public String unsupportedMessage() {
+        return name() + "需要JDK 21及以上，当前JDK：" + System.getProperty("java.version");
+    }
+
+    /**
+     * 按名字解析命令行参数，名字不对或者当前JDK不支持时抛出IllegalArgumentException，消息可以直接给用户看
+     */
+    public static ExecutionMode parse(String name) {
+        ExecutionMode mode;
+        try {
+            mode = valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("未知的执行方式：" + name + "，可选：" + Arrays.toString(values()));
+        }
+        if (!mode.isSupported()) {
+            throw new IllegalArgumentException(mode.unsupportedMessage());
+        }
+        return mode;
+    }
+
+    /**
+     * @throws IllegalStateException 当前JDK不支持这种执行方式
+     */
+    abstract ExecutorService newExecutor();
+}
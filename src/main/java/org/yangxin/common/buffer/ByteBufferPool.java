@@ -0,0 +1,208 @@
+package org.yangxin.common.buffer;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按大小分级的直接内存池。
+ * 申请时向上取整到最近的级别，从该级别的空闲链表里拿；用完release回来，供下一次使用。
+ * 超过最大级别的申请直接分配，不入池。
+ * 打开泄漏检测后会记录每个未归还buffer的申请位置，并能发现重复归还。
+ *
+ * @author yangxin
+ * 2026/10/17 15:10
+ */
+public class ByteBufferPool {
+
+    private static final int[] DEFAULT_SIZE_CLASSES = {512, 1024, 4 * 1024, 16 * 1024, 64 * 1024};
+    private static final int DEFAULT_MAX_POOLED_PER_CLASS = 1024;
+
+    /**
+     * -Dbuffer.pool.leakDetection=true 打开泄漏检测，会记录调用栈，只适合排查问题时使用
+     */
+    public static final ByteBufferPool DEFAULT = new ByteBufferPool(DEFAULT_SIZE_CLASSES,
+            DEFAULT_MAX_POOLED_PER_CLASS, Boolean.getBoolean("buffer.pool.leakDetection"));
+
+    private final int[] sizeClasses;
+    private final List<Queue<ByteBuffer>> freeLists;
+    private final AtomicInteger[] freeCounts;
+    private final int maxPooledPerClass;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final AtomicLong outstanding = new AtomicLong();
+    /**
+     * 未归还buffer到申请位置的映射，只有打开泄漏检测时才不为null。ByteBuffer的hashCode依赖内容，必须按引用比较。
+     */
+    private final Map<ByteBuffer, Throwable> leakTracker;
+
+    public ByteBufferPool(int[] sizeClasses, int maxPooledPerClass, boolean leakDetection) {
+        if (sizeClasses.length == 0) {
+            throw new IllegalArgumentException("sizeClasses is empty");
+        }
+        for (int i = 1; i < sizeClasses.length; i++) {
+            if (sizeClasses[i] <= sizeClasses[i - 1]) {
+                throw new IllegalArgumentException("sizeClasses must be ascending");
+            }
+        }
+
+        this.sizeClasses = sizeClasses.clone();
+        this.maxPooledPerClass = maxPooledPerClass;
+        this.freeLists = new ArrayList<>(sizeClasses.length);
+        this.freeCounts = new AtomicInteger[sizeClasses.length];
+        for (int i = 0; i < sizeClasses.length; i++) {
+            freeLists.add(new ConcurrentLinkedQueue<>());
+            freeCounts[i] = new AtomicInteger();
+        }
+        this.leakTracker = leakDetection ? Collections.synchronizedMap(new IdentityHashMap<>()) : null;
+    }
+
+    /**
+     * @return 写模式的直接buffer，position为0，limit为size，容量可能比size大
+     */
+    public ByteBuffer acquire(int size) {
+        int index = sizeClassIndex(size);
+        ByteBuffer buffer = null;
+        if (index >= 0) {
+            buffer = freeLists.get(index).poll();
+        }
+
+        if (buffer != null) {
+            freeCounts[index].decrementAndGet();
+            hits.increment();
+            buffer.clear();
+        } else {
+            misses.increment();
+            buffer = ByteBuffer.allocateDirect(index >= 0 ? sizeClasses[index] : size);
+        }
+        buffer.limit(size);
+
+        outstanding.incrementAndGet();
+        if (leakTracker != null) {
+            leakTracker.put(buffer, new Throwable("buffer acquired here, capacity: " + buffer.capacity()));
+        }
+        return buffer;
+    }
+
+    /**
+     * 归还acquire得到的buffer本身，不能是它的slice或duplicate。归还后调用方不能再使用它。
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        if (leakTracker != null && leakTracker.remove(buffer) == null) {
+            throw new IllegalStateException("buffer重复归还或者不是从本池申请的：" + buffer);
+        }
+        outstanding.decrementAndGet();
+
+        int index = sizeClassIndex(buffer.capacity());
+        if (index < 0 || sizeClasses[index] != buffer.capacity()) {
+            // 超大的buffer不入池，交给GC回收
+            return;
+        }
+        if (freeCounts[index].incrementAndGet() > maxPooledPerClass) {
+            freeCounts[index].decrementAndGet();
+            return;
+        }
+        freeLists.get(index).offer(buffer);
+    }
+
+    public Stats stats() {
+        int pooled = 0;
+        for (AtomicInteger freeCount : freeCounts) {
+            pooled += freeCount.get();
+        }
+        return new Stats(hits.sum(), misses.sum(), outstanding.get(), pooled);
+    }
+
+    /**
+     * 打印所有尚未归还的buffer的申请位置
+     *
+     * @return 未归还的buffer数量
+     */
+    public int reportLeaks(PrintStream out) {
+        if (leakTracker == null) {
+            out.println("泄漏检测未开启，未归还buffer数量：" + outstanding.get());
+            return (int) outstanding.get();
+        }
+
+        List<Throwable> records;
+        synchronized (leakTracker) {
+            records = new ArrayList<>(leakTracker.values());
+        }
+        for (Throwable record : records) {
+            record.printStackTrace(out);
+        }
+        return records.size();
+    }
+
+    private int sizeClassIndex(int size) {
+        for (int i = 0; i < sizeClasses.length; i++) {
+            if (size <= sizeClasses[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 某一时刻的统计快照
+     */
+    public static class Stats {
+
+        private final long hits;
+        private final long misses;
+        private final long outstanding;
+        private final int pooled;
+
+        Stats(long hits, long misses, long outstanding, int pooled) {
+            this.hits = hits;
+            this.misses = misses;
+            this.outstanding = outstanding;
+            this.pooled = pooled;
+        }
+
+        public long hits() {
+            return hits;
+        }
+
+        public long misses() {
+            return misses;
+        }
+
+        /**
+         * 已借出但还没归还的buffer数量，稳定状态下持续增长说明有泄漏
+         */
+        public long outstanding() {
+            return outstanding;
+        }
+
+        /**
+         * 空闲链表里可以直接复用的buffer数量
+         */
+        public int pooled() {
+            return pooled;
+        }
+
+        public double hitRate() {
+            long total = hits + misses;
+            return total == 0 ? 0 : (double) hits / total;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hits: %d, misses: %d, hitRate: %.2f%%, outstanding: %d, pooled: %d",
+                    hits, misses, hitRate() * 100, outstanding, pooled);
+        }
+    }
+}
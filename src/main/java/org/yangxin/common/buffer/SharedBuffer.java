@@ -0,0 +1,59 @@
+package org.yangxin.common.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 被多个连接共同发送的池化buffer，例如一条广播消息。
+ * 每个接收者通过view()拿到自己的视图，写完后release()一次，最后一个release的人把buffer还给池。
+ * 接收者数量事先不知道时，创建者先持有一个引用，每交给一个接收者retain()一次，分发完再release()自己的那个。
+ *
+ * @author yangxin
+ * 2026/10/17 15:10
+ */
+public class SharedBuffer {
+
+    private final ByteBufferPool pool;
+    private final ByteBuffer buffer;
+    private final AtomicInteger refCnt;
+
+    /**
+     * @param buffer 读模式的buffer，必须是从pool申请的
+     * @param refCnt 需要release的次数，通常就是接收者的数量
+     */
+    public SharedBuffer(ByteBufferPool pool, ByteBuffer buffer, int refCnt) {
+        this.pool = pool;
+        this.buffer = buffer;
+        this.refCnt = new AtomicInteger(refCnt);
+        if (refCnt == 0) {
+            pool.release(buffer);
+        }
+    }
+
+    public SharedBuffer retain() {
+        int current;
+        do {
+            current = refCnt.get();
+            if (current <= 0) {
+                throw new IllegalStateException("SharedBuffer已经归还给池，不能再retain");
+            }
+        } while (!refCnt.compareAndSet(current, current + 1));
+        return this;
+    }
+
+    /**
+     * 独立position和limit的只读视图，底层内存共享
+     */
+    public ByteBuffer view() {
+        return buffer.asReadOnlyBuffer();
+    }
+
+    public void release() {
+        int remaining = refCnt.decrementAndGet();
+        if (remaining == 0) {
+            pool.release(buffer);
+        } else if (remaining < 0) {
+            throw new IllegalStateException("SharedBuffer release次数超过引用计数");
+        }
+    }
+}
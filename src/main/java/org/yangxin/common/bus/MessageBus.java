@@ -0,0 +1,128 @@
+package org.yangxin.common.bus;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * 进程内的消息总线，用于同一个进程里的多个分片互相转发消息。
+ * 每个分片join一次得到一个Endpoint，publish的消息投递给除自己以外的所有Endpoint。
+ * <ul>
+ *     <li>每个Endpoint一个无锁的多生产者收件箱（ConcurrentLinkedQueue），发布只是入队加一次CAS</li>
+ *     <li>收件箱从空变为非空时才往分片自己的执行器（事件循环、通道组的线程池）提交一个取消息的任务，
+ *     一批消息只提交一次，处理消息的始终是分片自己的线程</li>
+ *     <li>Endpoint列表是写时复制的，发布时遍历快照不加锁，只有分片启停时才会修改</li>
+ * </ul>
+ *
+ * @author yangxin
+ * 2026/10/18 11:30
+ */
+public class MessageBus<T> {
+
+    /**
+     * 一次最多处理这么多条，剩下的重新提交，不让总线上的消息长时间占住分片的线程
+     */
+    private static final int MAX_DRAIN = 1024;
+
+    private final List<Endpoint<T>> endpoints = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param executor 处理消息的线程，通常是分片自己的事件循环
+     * @param handler  处理别的分片发来的消息，抛出的异常只打印，不影响后面的消息
+     */
+    public Endpoint<T> join(Executor executor, Consumer<T> handler) {
+        Endpoint<T> endpoint = new Endpoint<>(this, executor, handler);
+        endpoints.add(endpoint);
+        return endpoint;
+    }
+
+    public int size() {
+        return endpoints.size();
+    }
+
+    /**
+     * 总线上的一个分片
+     */
+    public static final class Endpoint<T> implements Runnable {
+
+        private final MessageBus<T> bus;
+        private final Executor executor;
+        private final Consumer<T> handler;
+        private final Queue<T> inbox = new ConcurrentLinkedQueue<>();
+        /**
+         * 是否已经提交了取消息的任务还没执行，避免重复提交
+         */
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        private Endpoint(MessageBus<T> bus, Executor executor, Consumer<T> handler) {
+            this.bus = bus;
+            this.executor = executor;
+            this.handler = handler;
+        }
+
+        /**
+         * 投递给其他所有分片，可以在任意线程调用
+         */
+        public void publish(T message) {
+            for (Endpoint<T> endpoint : bus.endpoints) {
+                if (endpoint != this) {
+                    endpoint.offer(message);
+                }
+            }
+        }
+
+        /**
+         * 离开后不再收到消息，收件箱里剩下的消息被丢弃
+         */
+        public void leave() {
+            bus.endpoints.remove(this);
+            inbox.clear();
+        }
+
+        private void offer(T message) {
+            inbox.offer(message);
+            schedule();
+        }
+
+        /**
+         * 执行器拒绝时（例如分片正在关闭）放下标记，否则这个端点再也不会被调度；消息留在收件箱里，下次投递时再试
+         */
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    scheduled.set(false);
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * 在分片自己的线程里执行
+         */
+        @Override
+        public void run() {
+            // 先清标记再取，取的过程中新来的消息会重新提交
+            scheduled.set(false);
+            T message;
+            int drained = 0;
+            while (drained < MAX_DRAIN && (message = inbox.poll()) != null) {
+                drained++;
+                try {
+                    handler.accept(message);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (!inbox.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+}
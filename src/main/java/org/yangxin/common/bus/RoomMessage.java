@@ -0,0 +1,30 @@
+package org.yangxin.common.bus;
+
+/**
+ * 分片之间转发的房间消息，收到的分片发给自己这边这个房间里的所有人。
+ * 只带发送者名字和原文，各个分片按自己的方式编码一次。
+ *
+ * @author yangxin
+ * 2026/10/18 11:30
+ */
+public class RoomMessage {
+
+    private final String room;
+    private final String text;
+
+    /**
+     * @param text 已经带上发送者名字的完整消息
+     */
+    public RoomMessage(String room, String text) {
+        this.room = room;
+        this.text = text;
+    }
+
+    public String room() {
+        return room;
+    }
+
+    public String text() {
+        return text;
+    }
+}
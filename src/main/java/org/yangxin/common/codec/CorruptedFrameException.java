@@ -0,0 +1,18 @@
+package org.yangxin.common.codec;
+
+import java.io.IOException;
+
+/**
+ * 对端发来的数据不符合帧格式，连接上的后续数据已经无法再对齐帧边界，只能断开
+ *
+ * @author yangxin
+ * 2026/10/17 13:40
+ */
+public class CorruptedFrameException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public CorruptedFrameException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,222 @@
+package org.yangxin.common.codec;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 长度前缀的帧格式：头部是负载的字节数，后面紧跟负载。
+ * 头部可以是固定4字节的大端int，也可以是1~5字节的varint（每字节低7位存数据，最高位表示后面还有字节）。
+ * BIO、NIO、AIO三个聊天室的服务端和客户端共用这一种格式，收发双方必须使用相同的LengthFormat。
+ *
+ * @author yangxin
+ * 2026/10/17 13:40
+ */
+public class FrameCodec {
+
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 1024 * 1024;
+    public static final Charset CHARSET = StandardCharsets.UTF_8;
+    public static final FrameCodec DEFAULT = new FrameCodec(LengthFormat.FIXED_INT, DEFAULT_MAX_FRAME_LENGTH);
+
+    /**
+     * 长度头的编码方式
+     */
+    public enum LengthFormat {
+
+        /**
+         * 固定4字节大端int
+         */
+        FIXED_INT,
+
+        /**
+         * 无符号varint，小消息只需要1~2字节头部
+         */
+        VARINT
+    }
+
+    private final LengthFormat lengthFormat;
+    private final int maxFrameLength;
+
+    public FrameCodec(LengthFormat lengthFormat, int maxFrameLength) {
+        if (lengthFormat == null) {
+            throw new IllegalArgumentException("lengthFormat is null");
+        }
+        if (maxFrameLength < 0) {
+            throw new IllegalArgumentException("maxFrameLength: " + maxFrameLength);
+        }
+        this.lengthFormat = lengthFormat;
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    public LengthFormat lengthFormat() {
+        return lengthFormat;
+    }
+
+    public int maxFrameLength() {
+        return maxFrameLength;
+    }
+
+    /**
+     * 每个连接一个解码器，解码器内部保存半包状态，不能在连接之间共用
+     */
+    public FrameDecoder newDecoder(FrameDecoder.FrameHandler handler) {
+        return new FrameDecoder(this, handler);
+    }
+
+    public int headerLength(int payloadLength) {
+        if (lengthFormat == LengthFormat.FIXED_INT) {
+            return 4;
+        }
+
+        int length = 1;
+        while ((payloadLength >>>= 7) != 0) {
+            length++;
+        }
+        return length;
+    }
+
+    public void writeHeader(ByteBuffer dst, int payloadLength) {
+        checkLength(payloadLength);
+        if (lengthFormat == LengthFormat.FIXED_INT) {
+            dst.putInt(payloadLength);
+            return;
+        }
+
+        while ((payloadLength & ~0x7F) != 0) {
+            dst.put((byte) ((payloadLength & 0x7F) | 0x80));
+            payloadLength >>>= 7;
+        }
+        dst.put((byte) payloadLength);
+    }
+
+    /**
+     * 把字符串编码成一个完整的帧，放在堆内存里并返回只读视图，可以duplicate()后发给多个连接。
+     * 每次都分配新的buffer，适合客户端和偶尔发送的帧；服务端广播这种热点路径应当编码进池化的直接内存（见SharedBuffer）。
+     */
+    public ByteBuffer encode(String msg) {
+        return encode(msg.getBytes(CHARSET));
+    }
+
+    public ByteBuffer encode(byte[] payload) {
+        ByteBuffer frame = ByteBuffer.allocate(headerLength(payload.length) + payload.length);
+        writeFrame(frame, payload);
+        frame.flip();
+        return frame.asReadOnlyBuffer();
+    }
+
+    /**
+     * 把一帧写进dst，dst剩余空间至少要有headerLength(payload.length) + payload.length
+     */
+    public void writeFrame(ByteBuffer dst, byte[] payload) {
+        writeHeader(dst, payload.length);
+        dst.put(payload);
+    }
+
+    /**
+     * 阻塞IO写出一帧，不负责flush
+     */
+    public void writeFrame(OutputStream out, byte[] payload) throws IOException {
+        int payloadLength = payload.length;
+        checkLength(payloadLength);
+        if (lengthFormat == LengthFormat.FIXED_INT) {
+            out.write(payloadLength >>> 24);
+            out.write(payloadLength >>> 16);
+            out.write(payloadLength >>> 8);
+            out.write(payloadLength);
+        } else {
+            while ((payloadLength & ~0x7F) != 0) {
+                out.write((payloadLength & 0x7F) | 0x80);
+                payloadLength >>>= 7;
+            }
+            out.write(payloadLength);
+        }
+        out.write(payload);
+    }
+
+    /**
+     * 阻塞IO读取一帧的负载
+     *
+     * @return 负载；对端在帧边界上正常关闭时返回null
+     * @throws EOFException 对端在帧中间关闭
+     */
+    public byte[] readFrame(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            return null;
+        }
+
+        int payloadLength;
+        if (lengthFormat == LengthFormat.FIXED_INT) {
+            payloadLength = b << 24 | readByte(in) << 16 | readByte(in) << 8 | readByte(in);
+        } else {
+            payloadLength = 0;
+            int shift = 0;
+            while (true) {
+                payloadLength |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+                shift += 7;
+                if (shift > 28) {
+                    throw new CorruptedFrameException("varint长度头超过5个字节");
+                }
+                b = readByte(in);
+            }
+        }
+        checkDecodedLength(payloadLength);
+
+        byte[] payload = new byte[payloadLength];
+        int read = 0;
+        while (read < payloadLength) {
+            int n = in.read(payload, read, payloadLength - read);
+            if (n < 0) {
+                throw new EOFException("帧读到一半连接被关闭");
+            }
+            read += n;
+        }
+        return payload;
+    }
+
+    /**
+     * 把帧负载解码成字符串，读完后buffer的position不变
+     */
+    public static String toString(ByteBuffer frame) {
+        if (frame.hasArray()) {
+            return new String(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining(), CHARSET);
+        }
+
+        byte[] bytes = new byte[frame.remaining()];
+        frame.duplicate().get(bytes);
+        return new String(bytes, CHARSET);
+    }
+
+    /**
+     * 编码时长度超限属于调用方的错误
+     */
+    private void checkLength(int payloadLength) {
+        if (payloadLength > maxFrameLength) {
+            throw new IllegalArgumentException("帧长度" + payloadLength + "超出上限" + maxFrameLength);
+        }
+    }
+
+    /**
+     * 解码时长度超限说明对端发来的数据有问题
+     */
+    void checkDecodedLength(int payloadLength) throws CorruptedFrameException {
+        if (payloadLength < 0 || payloadLength > maxFrameLength) {
+            throw new CorruptedFrameException("帧长度" + (payloadLength & 0xFFFFFFFFL) + "超出上限" + maxFrameLength);
+        }
+    }
+
+    private int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("帧头读到一半连接被关闭");
+        }
+        return b;
+    }
+}
@@ -0,0 +1,151 @@
+package org.yangxin.common.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 增量解码器：每次把一次read()读到的数据喂进来，解析出多少个完整的帧就回调多少次，不完整的部分留到下次。
+ * 整帧都在本次数据里时直接把原buffer的一段交给回调，不复制；只有跨read的半包才会复制到内部的累积缓冲区。
+ * 非线程安全，每个连接一个。
+ *
+ * @author yangxin
+ * 2026/10/17 13:40
+ */
+public class FrameDecoder {
+
+    private static final int INITIAL_CUMULATION_CAPACITY = 256;
+    /**
+     * 大帧处理完后累积缓冲区如果超过这个大小就释放掉，免得空闲连接一直占着大块内存
+     */
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    /**
+     * 帧回调。frame的position到limit是负载，只在回调期间有效，需要保留的话自己复制出去。
+     */
+    public interface FrameHandler {
+
+        void onFrame(ByteBuffer frame) throws IOException;
+    }
+
+    private final FrameCodec codec;
+    private final FrameHandler handler;
+    private ByteBuffer cumulation = ByteBuffer.allocate(INITIAL_CUMULATION_CAPACITY);
+    /**
+     * 当前帧的负载长度，头部还没读完时为-1
+     */
+    private int expectedLength = -1;
+    /**
+     * 头部读到一半时的中间状态
+     */
+    private int headerRead;
+    private int partialLength;
+
+    FrameDecoder(FrameCodec codec, FrameHandler handler) {
+        this.codec = codec;
+        this.handler = handler;
+    }
+
+    /**
+     * @param in 读模式的buffer，返回时已被全部消费
+     */
+    public void decode(ByteBuffer in) throws IOException {
+        while (true) {
+            if (expectedLength < 0 && !readHeader(in)) {
+                // 头部还不完整，等下次数据
+                return;
+            }
+
+            int frameLength = expectedLength;
+            if (cumulation.position() == 0 && in.remaining() >= frameLength) {
+                // 整帧都在in里，直接交给回调
+                int limit = in.limit();
+                int end = in.position() + frameLength;
+                expectedLength = -1;
+                in.limit(end);
+                try {
+                    handler.onFrame(in);
+                } finally {
+                    in.limit(limit);
+                    in.position(end);
+                }
+                continue;
+            }
+
+            ensureCapacity(frameLength);
+            int n = Math.min(frameLength - cumulation.position(), in.remaining());
+            int limit = in.limit();
+            in.limit(in.position() + n);
+            cumulation.put(in);
+            in.limit(limit);
+            if (cumulation.position() < frameLength) {
+                // 负载还不完整，等下次数据
+                return;
+            }
+
+            expectedLength = -1;
+            cumulation.flip();
+            try {
+                handler.onFrame(cumulation);
+            } finally {
+                releaseCumulation();
+            }
+        }
+    }
+
+    /**
+     * 逐字节解析头部，头部跨两次read()也能接上
+     */
+    private boolean readHeader(ByteBuffer in) throws CorruptedFrameException {
+        while (in.hasRemaining()) {
+            int b = in.get() & 0xFF;
+            if (codec.lengthFormat() == FrameCodec.LengthFormat.FIXED_INT) {
+                partialLength = partialLength << 8 | b;
+                if (++headerRead == 4) {
+                    return headerComplete();
+                }
+            } else {
+                partialLength |= (b & 0x7F) << (7 * headerRead);
+                headerRead++;
+                if ((b & 0x80) == 0) {
+                    return headerComplete();
+                }
+                if (headerRead == 5) {
+                    throw new CorruptedFrameException("varint长度头超过5个字节");
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean headerComplete() throws CorruptedFrameException {
+        int length = partialLength;
+        headerRead = 0;
+        partialLength = 0;
+        codec.checkDecodedLength(length);
+        expectedLength = length;
+        return true;
+    }
+
+    private void ensureCapacity(int frameLength) {
+        if (cumulation.capacity() >= frameLength) {
+            return;
+        }
+
+        int capacity = cumulation.capacity();
+        while (capacity < frameLength) {
+            capacity = capacity << 1 > 0 ? capacity << 1 : frameLength;
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(Math.min(capacity, Math.max(frameLength, codec.maxFrameLength())));
+        cumulation.flip();
+        bigger.put(cumulation);
+        cumulation = bigger;
+    }
+
+    private void releaseCumulation() {
+        if (cumulation.capacity() > MAX_RETAINED_CAPACITY) {
+            cumulation = ByteBuffer.allocate(INITIAL_CUMULATION_CAPACITY);
+        } else {
+            cumulation.clear();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package org.yangxin.common.file;
+
+import java.io.File;
+
+/**
+ * 聊天室里传文件的命令。文件内容不单独定义格式，紧跟在命令后面，切成若干个普通的帧：
+ * <ul>
+ *     <li>上传：客户端发 "/file 大小 文件名"，接着发文件内容</li>
+ *     <li>分发：服务端给其他人发 "/file 大小 发送者 文件名"，接着发文件内容</li>
+ * </ul>
+ * 收到命令的一方按大小数字节，收满之前的帧都是文件内容。
+ *
+ * @author yangxin
+ * 2026/10/17 21:00
+ */
+public class FileCommand {
+
+    public static final String PREFIX = "/file ";
+    /**
+     * 文件内容每帧的最大负载，和池的最大级别一致，客户端解码时也不会产生大块的累积缓冲区
+     */
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    private final long size;
+    private final String sender;
+    private final String name;
+
+    private FileCommand(long size, String sender, String name) {
+        this.size = size;
+        this.sender = sender;
+        this.name = name;
+    }
+
+    public static boolean isCommand(String msg) {
+        return msg.startsWith(PREFIX);
+    }
+
+    public static String upload(long size, String name) {
+        return PREFIX + size + " " + name;
+    }
+
+    public static String announce(long size, String sender, String name) {
+        return PREFIX + size + " " + sender + " " + name;
+    }
+
+    /**
+     * @return 格式不对时返回null
+     */
+    public static FileCommand parseUpload(String msg) {
+        String[] parts = split(msg, 2);
+        return parts == null ? null : create(parts[0], null, parts[1]);
+    }
+
+    /**
+     * @return 格式不对时返回null
+     */
+    public static FileCommand parseAnnounce(String msg) {
+        String[] parts = split(msg, 3);
+        return parts == null ? null : create(parts[0], parts[1], parts[2]);
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * 上传命令里没有发送者，返回null
+     */
+    public String sender() {
+        return sender;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    /**
+     * 最后一段是文件名，文件名里可以有空格
+     */
+    private static String[] split(String msg, int parts) {
+        if (!isCommand(msg)) {
+            return null;
+        }
+        String[] result = msg.substring(PREFIX.length()).split(" ", parts);
+        return result.length == parts ? result : null;
+    }
+
+    private static FileCommand create(String size, String sender, String name) {
+        // 只保留文件名本身，防止"../"之类的路径写到别的目录
+        String fileName = new File(name).getName();
+        if (fileName.isEmpty()) {
+            return null;
+        }
+        try {
+            long length = Long.parseLong(size);
+            return length < 0 ? null : new FileCommand(length, sender, fileName);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
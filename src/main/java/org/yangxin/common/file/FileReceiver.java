@@ -0,0 +1,97 @@
+package org.yangxin.common.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 把"/file"命令后面的帧依次写进文件，收满命令里声明的大小为止。
+ * 服务端收到的文件写进临时文件，关闭通道时自动删除；客户端收到的文件写进下载目录。
+ * 非线程安全，每个连接同一时刻最多一个。
+ *
+ * @author yangxin
+ * 2026/10/17 21:00
+ */
+public class FileReceiver {
+
+    private final FileCommand command;
+    private final Path path;
+    private final FileChannel channel;
+    private long received;
+
+    private FileReceiver(FileCommand command, Path path, FileChannel channel) {
+        this.command = command;
+        this.path = path;
+        this.channel = channel;
+    }
+
+    /**
+     * 服务端用的临时文件，读写打开，最后一个使用者关闭通道时删除
+     */
+    public static FileReceiver toTempFile(FileCommand command) throws IOException {
+        Path path = Files.createTempFile("chat-file-", ".tmp");
+        return new FileReceiver(command, path, FileChannel.open(path, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE));
+    }
+
+    /**
+     * 客户端用的下载文件，同名文件会被覆盖
+     */
+    public static FileReceiver toDirectory(FileCommand command, Path directory) throws IOException {
+        Files.createDirectories(directory);
+        Path path = directory.resolve(command.name());
+        return new FileReceiver(command, path, FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+    }
+
+    /**
+     * 写入一帧文件内容
+     *
+     * @throws IOException 超出了声明的大小
+     */
+    public void write(ByteBuffer frame) throws IOException {
+        if (frame.remaining() > remaining()) {
+            throw new IOException("文件内容超出了声明的大小：" + command.name());
+        }
+        while (frame.hasRemaining()) {
+            received += channel.write(frame, received);
+        }
+    }
+
+    public boolean isComplete() {
+        return received == command.size();
+    }
+
+    public long remaining() {
+        return command.size() - received;
+    }
+
+    public FileCommand command() {
+        return command;
+    }
+
+    public Path path() {
+        return path;
+    }
+
+    /**
+     * 收完以后交给调用方，调用方负责关闭
+     */
+    public FileChannel channel() {
+        return channel;
+    }
+
+    /**
+     * 中途放弃，临时文件随之删除
+     */
+    public void abort() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package org.yangxin.common.file;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 被多个连接同时发送的文件，和SharedBuffer一样用引用计数管理。
+ * 每个接收者按绝对位置读，互不影响；最后一个release的人关闭通道。
+ *
+ * @author yangxin
+ * 2026/10/17 21:00
+ */
+public class SharedFile {
+
+    private final FileChannel channel;
+    private final String name;
+    private final long size;
+    private final AtomicInteger refCnt;
+
+    public SharedFile(FileChannel channel, String name, long size, int refCnt) {
+        this.channel = channel;
+        this.name = name;
+        this.size = size;
+        this.refCnt = new AtomicInteger(refCnt);
+        if (refCnt == 0) {
+            close();
+        }
+    }
+
+    public FileChannel channel() {
+        return channel;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public SharedFile retain() {
+        int current;
+        do {
+            current = refCnt.get();
+            if (current <= 0) {
+                throw new IllegalStateException("SharedFile已经关闭，不能再retain");
+            }
+        } while (!refCnt.compareAndSet(current, current + 1));
+        return this;
+    }
+
+    public void release() {
+        int remaining = refCnt.decrementAndGet();
+        if (remaining == 0) {
+            close();
+        } else if (remaining < 0) {
+            throw new IllegalStateException("SharedFile release次数超过引用计数");
+        }
+    }
+
+    private void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
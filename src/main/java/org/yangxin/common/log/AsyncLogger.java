@@ -0,0 +1,264 @@
+package org.yangxin.common.log;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 异步日志：调用方只把级别、模板和参数放进一个固定大小的环形缓冲区，格式化和输出都在一个后台线程里做。
+ * <ul>
+ *     <li>多个线程入队时用CAS抢占序号，槽位预先分配好，入队不分配对象（参数装箱和可变参数数组除外）</li>
+ *     <li>模板里的{}在后台线程才替换成参数，参数必须是不可变的或者之后不再修改</li>
+ *     <li>后台线程一次取出一批，拼成一个字符串后只调用一次输出流，System.out的锁每批只拿一次</li>
+ *     <li>缓冲区满时丢弃并计数，不阻塞IO线程，丢弃的条数在下一批里输出</li>
+ * </ul>
+ * 级别通过-Dlog.level设置（默认INFO），运行时可以用setLevel修改；缓冲区大小通过-Dlog.bufferSize设置（默认8192）。
+ *
+ * @author yangxin
+ * 2026/10/17 22:40
+ */
+public class AsyncLogger {
+
+    public static final AsyncLogger DEFAULT = new AsyncLogger(System.out,
+            Integer.getInteger("log.bufferSize", 8192),
+            Level.valueOf(System.getProperty("log.level", Level.INFO.name()).toUpperCase()));
+
+    private static final int MAX_BATCH = 256;
+    /**
+     * 没有日志时后台线程的休眠时间，入队不唤醒后台线程，省掉每条日志一次unpark
+     */
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long CLOSE_TIMEOUT_MILLIS = 1000;
+    private static final DateTimeFormatter TIME_FORMATTER =
+            DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private final PrintStream out;
+    private final Event[] ring;
+    /**
+     * published[i]等于某个序号时，说明这个序号对应的槽已经填好，可以被后台线程读取
+     */
+    private final AtomicLongArray published;
+    private final int mask;
+    /**
+     * 下一个要分配的序号
+     */
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * 后台线程下一个要读取的序号，tail - head就是缓冲区里的条数
+     */
+    private final AtomicLong head = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final StringBuilder batch = new StringBuilder(16 * 1024);
+    private final Thread consumer;
+    private volatile Level level;
+    private volatile boolean running = true;
+
+    /**
+     * @param capacity 会向上取整到2的幂
+     */
+    public AsyncLogger(PrintStream out, int capacity, Level level) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.out = out;
+        this.level = level;
+        this.ring = new Event[size];
+        this.published = new AtomicLongArray(size);
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Event();
+            published.set(i, -1);
+        }
+
+        consumer = new Thread(this::drain, "async-logger");
+        consumer.setDaemon(true);
+        consumer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "async-logger-shutdown"));
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.isEnabled(this.level);
+    }
+
+    /**
+     * 缓冲区满时丢弃的条数
+     */
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * 调用方应先用isEnabled过滤，这里不再检查级别
+     *
+     * @return 缓冲区满被丢弃时返回false
+     */
+    boolean enqueue(Level level, String name, String pattern, int argCount, Object arg0, Object arg1, Object arg2,
+                    Object[] args, Throwable throwable) {
+        long sequence;
+        do {
+            sequence = tail.get();
+            if (sequence - head.get() >= ring.length || !running) {
+                dropped.increment();
+                return false;
+            }
+        } while (!tail.compareAndSet(sequence, sequence + 1));
+
+        int index = (int) sequence & mask;
+        Event event = ring[index];
+        event.timeMillis = System.currentTimeMillis();
+        event.level = level;
+        event.thread = Thread.currentThread().getName();
+        event.name = name;
+        event.pattern = pattern;
+        event.argCount = argCount;
+        event.arg0 = arg0;
+        event.arg1 = arg1;
+        event.arg2 = arg2;
+        event.args = args;
+        event.throwable = throwable;
+        // volatile写，前面对槽的普通写对读到这个序号的后台线程可见
+        published.set(index, sequence);
+        return true;
+    }
+
+    /**
+     * 停止接收新日志，等后台线程把已经入队的输出完
+     */
+    public void close() {
+        running = false;
+        LockSupport.unpark(consumer);
+        try {
+            consumer.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            int count = drainBatch();
+            if (count > 0) {
+                continue;
+            }
+            if (!running && head.get() == tail.get()) {
+                return;
+            }
+            LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+        }
+    }
+
+    /**
+     * 取出最多MAX_BATCH条，只在遇到已分配但还没填好的槽时停下
+     */
+    private int drainBatch() {
+        long droppedCount = dropped.sumThenReset();
+        if (droppedCount > 0) {
+            batch.append(TIME_FORMATTER.format(Instant.now())).append(" WARN  [async-logger] AsyncLogger - ")
+                    .append("日志缓冲区已满，丢弃了").append(droppedCount).append("条日志").append(System.lineSeparator());
+        }
+
+        long sequence = head.get();
+        int count = 0;
+        while (count < MAX_BATCH) {
+            int index = (int) sequence & mask;
+            if (published.get(index) != sequence) {
+                break;
+            }
+            Event event = ring[index];
+            format(event);
+            event.clear();
+            sequence++;
+            count++;
+        }
+        if (count > 0) {
+            // 槽清空后才让出去
+            head.lazySet(sequence);
+        }
+
+        if (batch.length() > 0) {
+            out.print(batch);
+            out.flush();
+            batch.setLength(0);
+        }
+        return count;
+    }
+
+    private void format(Event event) {
+        batch.append(TIME_FORMATTER.format(Instant.ofEpochMilli(event.timeMillis))).append(' ');
+        String levelName = event.level.name();
+        batch.append(levelName);
+        for (int i = levelName.length(); i < 6; i++) {
+            batch.append(' ');
+        }
+        batch.append('[').append(event.thread).append("] ").append(event.name).append(" - ");
+
+        String pattern = event.pattern;
+        int argIndex = 0;
+        int from = 0;
+        int placeholder;
+        while ((placeholder = pattern.indexOf("{}", from)) >= 0 && argIndex < event.argCount) {
+            batch.append(pattern, from, placeholder).append(event.arg(argIndex++));
+            from = placeholder + 2;
+        }
+        batch.append(pattern, from, pattern.length()).append(System.lineSeparator());
+
+        if (event.throwable != null) {
+            StringWriter trace = new StringWriter();
+            event.throwable.printStackTrace(new PrintWriter(trace));
+            batch.append(trace);
+        }
+    }
+
+    /**
+     * 环形缓冲区里的一个槽，反复使用
+     */
+    private static class Event {
+
+        private long timeMillis;
+        private Level level;
+        private String thread;
+        private String name;
+        private String pattern;
+        private int argCount;
+        private Object arg0;
+        private Object arg1;
+        private Object arg2;
+        /**
+         * 超过三个参数时才用，这时arg0~arg2不用
+         */
+        private Object[] args;
+        private Throwable throwable;
+
+        Object arg(int index) {
+            if (args != null) {
+                return args[index];
+            }
+            return index == 0 ? arg0 : index == 1 ? arg1 : arg2;
+        }
+
+        void clear() {
+            thread = null;
+            name = null;
+            pattern = null;
+            arg0 = null;
+            arg1 = null;
+            arg2 = null;
+            args = null;
+            throwable = null;
+        }
+    }
+}
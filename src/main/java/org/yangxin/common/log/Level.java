@@ -0,0 +1,23 @@
+package org.yangxin.common.log;
+
+/**
+ * 日志级别，低于当前级别的日志在调用方直接返回，不入队也不格式化
+ *
+ * @author yangxin
+ * 2026/10/17 22:40
+ */
+public enum Level {
+
+    DEBUG,
+    INFO,
+    WARN,
+    ERROR,
+    /**
+     * 关闭所有日志
+     */
+    OFF;
+
+    public boolean isEnabled(Level threshold) {
+        return this != OFF && compareTo(threshold) >= 0;
+    }
+}
@@ -0,0 +1,93 @@
+package org.yangxin.common.log;
+
+/**
+ * 按类命名的日志入口，用法和slf4j类似：LOG.info("{}：{}", name, msg)。
+ * 先检查级别再入队，关闭的级别只有一次volatile读；0~3个参数有单独的重载，不创建可变参数数组。
+ *
+ * @author yangxin
+ * 2026/10/17 22:40
+ */
+public class Logger {
+
+    private final String name;
+    private final AsyncLogger logger;
+
+    public Logger(String name, AsyncLogger logger) {
+        this.name = name;
+        this.logger = logger;
+    }
+
+    public static Logger getLogger(Class<?> type) {
+        return new Logger(type.getSimpleName(), AsyncLogger.DEFAULT);
+    }
+
+    public boolean isDebugEnabled() {
+        return logger.isEnabled(Level.DEBUG);
+    }
+
+    public boolean isInfoEnabled() {
+        return logger.isEnabled(Level.INFO);
+    }
+
+    public void debug(String pattern) {
+        log(Level.DEBUG, pattern, 0, null, null, null);
+    }
+
+    public void debug(String pattern, Object arg) {
+        log(Level.DEBUG, pattern, 1, arg, null, null);
+    }
+
+    public void debug(String pattern, Object arg0, Object arg1) {
+        log(Level.DEBUG, pattern, 2, arg0, arg1, null);
+    }
+
+    public void debug(String pattern, Object arg0, Object arg1, Object arg2) {
+        log(Level.DEBUG, pattern, 3, arg0, arg1, arg2);
+    }
+
+    public void info(String pattern) {
+        log(Level.INFO, pattern, 0, null, null, null);
+    }
+
+    public void info(String pattern, Object arg) {
+        log(Level.INFO, pattern, 1, arg, null, null);
+    }
+
+    public void info(String pattern, Object arg0, Object arg1) {
+        log(Level.INFO, pattern, 2, arg0, arg1, null);
+    }
+
+    public void info(String pattern, Object arg0, Object arg1, Object arg2) {
+        log(Level.INFO, pattern, 3, arg0, arg1, arg2);
+    }
+
+    public void info(String pattern, Object... args) {
+        if (logger.isEnabled(Level.INFO)) {
+            logger.enqueue(Level.INFO, name, pattern, args.length, null, null, null, args, null);
+        }
+    }
+
+    public void warn(String pattern) {
+        log(Level.WARN, pattern, 0, null, null, null);
+    }
+
+    public void warn(String pattern, Object arg) {
+        log(Level.WARN, pattern, 1, arg, null, null);
+    }
+
+    public void warn(String pattern, Object arg0, Object arg1) {
+        log(Level.WARN, pattern, 2, arg0, arg1, null);
+    }
+
+    public void error(String msg, Throwable throwable) {
+        if (logger.isEnabled(Level.ERROR)) {
+            logger.enqueue(Level.ERROR, name, msg, 0, null, null, null, null, throwable);
+        }
+    }
+
+    private void log(Level level, String pattern, int argCount, Object arg0, Object arg1, Object arg2) {
+        if (logger.isEnabled(level)) {
+            logger.enqueue(level, name, pattern, argCount, arg0, arg1, arg2, null, null);
+        }
+    }
+}
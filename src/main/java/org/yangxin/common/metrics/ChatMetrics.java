@@ -0,0 +1,76 @@
+package org.yangxin.common.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * 三个聊天室服务端共有的指标，名字都以前缀开头，例如nio_chat_messages_in_total。
+ * 各个服务端特有的指标（事件循环耗时、回调耗时、线程池队列长度）直接在registry()上注册。
+ *
+ * @author yangxin
+ * 2026/10/17 22:00
+ */
+public class ChatMetrics {
+
+    private final MetricsRegistry registry;
+    private final String prefix;
+    private final LongAdder messagesIn;
+    private final LongAdder messagesOut;
+    private final LongAdder messagesShed;
+    private final LongAdder bytesIn;
+    private final LongAdder bytesOut;
+
+    /**
+     * @param prefix 例如nio_chat，同时用作JMX里的名字
+     */
+    public ChatMetrics(String prefix, LongSupplier connections) {
+        this.registry = new MetricsRegistry(prefix);
+        this.prefix = prefix;
+        registry.gauge(prefix + "_connections", connections);
+        this.messagesIn = registry.counter(prefix + "_messages_in_total");
+        this.messagesOut = registry.counter(prefix + "_messages_out_total");
+        this.messagesShed = registry.counter(prefix + "_messages_shed_total");
+        this.bytesIn = registry.counter(prefix + "_bytes_in_total");
+        this.bytesOut = registry.counter(prefix + "_bytes_out_total");
+    }
+
+    public MetricsRegistry registry() {
+        return registry;
+    }
+
+    /**
+     * 给服务端特有的指标加上同样的前缀
+     */
+    public String name(String suffix) {
+        return prefix + "_" + suffix;
+    }
+
+    /**
+     * 收到的完整消息数
+     */
+    public LongAdder messagesIn() {
+        return messagesIn;
+    }
+
+    /**
+     * 放进各个连接写队列的消息数，一条广播算多条
+     */
+    public LongAdder messagesOut() {
+        return messagesOut;
+    }
+
+    /**
+     * 因为连接不可写而丢弃的消息数
+     */
+    public LongAdder messagesShed() {
+        return messagesShed;
+    }
+
+    public LongAdder bytesIn() {
+        return bytesIn;
+    }
+
+    public LongAdder bytesOut() {
+        return bytesOut;
+    }
+}
@@ -0,0 +1,162 @@
+package org.yangxin.common.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * HdrHistogram风格的对数-线性直方图，记录非负的long（通常是纳秒）。
+ * 小于256的值每个值一个桶；更大的值按2的幂分段，每段再等分成128个桶，相对误差不超过1/128，约两位有效数字。
+ * 桶数固定（约7500个），记录是O(1)的无锁操作，可以多个线程同时记录；总数和总和用LongAdder，避免所有线程争同一个变量。
+ *
+ * @author yangxin
+ * 2026/10/17 21:30
+ */
+public class LatencyHistogram {
+
+    /**
+     * 每段的子桶数是2^(SUB_BUCKET_BITS - 1)
+     */
+    private static final int SUB_BUCKET_BITS = 8;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKET_COUNT = SUB_BUCKET_COUNT >> 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(indexOf(Long.MAX_VALUE) + 1);
+    private final LongAdder totalCount = new LongAdder();
+    private final LongAdder totalValue = new LongAdder();
+    private final AtomicLong maxValue = new AtomicLong();
+    private final AtomicLong minValue = new AtomicLong(Long.MAX_VALUE);
+
+    /**
+     * @param value 负数按0记录
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(indexOf(value));
+        totalCount.increment();
+        totalValue.add(value);
+        updateMax(value);
+        updateMin(value);
+    }
+
+    public long count() {
+        return totalCount.sum();
+    }
+
+    /**
+     * 所有记录值的和
+     */
+    public long sum() {
+        return totalValue.sum();
+    }
+
+    public long max() {
+        return maxValue.get();
+    }
+
+    public long min() {
+        return count() == 0 ? 0 : minValue.get();
+    }
+
+    public double mean() {
+        long count = count();
+        return count == 0 ? 0 : (double) totalValue.sum() / count;
+    }
+
+    /**
+     * @param percentile 0~100
+     * @return 至少percentile%的记录不超过的值（所在桶的上界），没有记录时返回0
+     */
+    public long valueAtPercentile(double percentile) {
+        long count = count();
+        if (count == 0) {
+            return 0;
+        }
+
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestEquivalentValue(i), max());
+            }
+        }
+        return max();
+    }
+
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        totalCount.reset();
+        totalValue.reset();
+        maxValue.set(0);
+        minValue.set(Long.MAX_VALUE);
+    }
+
+    /**
+     * 按指定单位输出常用的百分位，例如"count: 1000, mean: 12.3, p50: 10.1, ... max: 80.0 (us)"
+     */
+    public String summary(TimeUnit unit) {
+        double scale = unit.toNanos(1);
+        return String.format("count: %d, min: %.1f, mean: %.1f, p50: %.1f, p90: %.1f, p99: %.1f, p99.9: %.1f, "
+                        + "p99.99: %.1f, max: %.1f (%s)",
+                count(), min() / scale, mean() / scale, valueAtPercentile(50) / scale,
+                valueAtPercentile(90) / scale, valueAtPercentile(99) / scale, valueAtPercentile(99.9) / scale,
+                valueAtPercentile(99.99) / scale, max() / scale, abbreviation(unit));
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        // value落在[2^(bucket+7), 2^(bucket+8))里，右移bucket位后落在[128, 256)
+        int bucket = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return bucket * HALF_SUB_BUCKET_COUNT + (int) (value >>> bucket);
+    }
+
+    static long highestEquivalentValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int bucket = index / HALF_SUB_BUCKET_COUNT - 1;
+        long subBucket = index - (long) bucket * HALF_SUB_BUCKET_COUNT;
+        return ((subBucket + 1) << bucket) - 1;
+    }
+
+    private void updateMax(long value) {
+        long current;
+        while (value > (current = maxValue.get())) {
+            if (maxValue.compareAndSet(current, value)) {
+                return;
+            }
+        }
+    }
+
+    private void updateMin(long value) {
+        long current;
+        while (value < (current = minValue.get())) {
+            if (minValue.compareAndSet(current, value)) {
+                return;
+            }
+        }
+    }
+
+    private static String abbreviation(TimeUnit unit) {
+        switch (unit) {
+            case NANOSECONDS:
+                return "ns";
+            case MICROSECONDS:
+                return "us";
+            case MILLISECONDS:
+                return "ms";
+            case SECONDS:
+                return "s";
+            default:
+                return unit.name().toLowerCase();
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package org.yangxin.common.metrics;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Supplier;
+
+/**
+ * 把MetricsRegistry暴露出去：
+ * <ul>
+ *     <li>JMX：注册为org.yangxin:type=Metrics,name=注册表名字，每个指标是一个只读属性，jconsole里可以直接看</li>
+ *     <li>HTTP：设置了-Dmetrics.port时在该端口的/metrics上输出Prometheus文本格式</li>
+ * </ul>
+ * 两种方式都是被读取时才计算，不读取就没有任何开销。
+ * 同一个进程里暴露多个注册表时（例如分片模式下每个分片一个），共用一个HTTP端口，依次输出。
+ * 服务端关闭时调用unexpose撤销，之后同名的新实例可以重新暴露，不会留下指向旧实例的MBean或者重复的指标。
+ *
+ * @author yangxin
+ * 2026/10/17 22:00
+ */
+public class MetricsExporter {
+
+    /**
+     * 通过-Dmetrics.port暴露的所有注册表
+     */
+    private static final List<MetricsRegistry> HTTP_REGISTRIES = new CopyOnWriteArrayList<>();
+    /**
+     * 每个MBean名字当前对应的注册表，只在持有类锁时访问
+     */
+    private static final Map<ObjectName, MetricsRegistry> JMX_REGISTRIES = new HashMap<>();
+    private static HttpServer httpServer;
+
+    private MetricsExporter() {
+    }
+
+    /**
+     * 同名的注册表已经暴露过时，新的替换旧的
+     */
+    public static synchronized void expose(MetricsRegistry registry) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = objectName(registry);
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(new RegistryMBean(registry), objectName);
+            MetricsRegistry previous = JMX_REGISTRIES.put(objectName, registry);
+            if (previous != null && previous != registry) {
+                HTTP_REGISTRIES.remove(previous);
+            }
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+
+        Integer port = Integer.getInteger("metrics.port");
+        if (port != null) {
+            if (!HTTP_REGISTRIES.contains(registry)) {
+                HTTP_REGISTRIES.add(registry);
+            }
+            if (httpServer != null) {
+                return;
+            }
+            try {
+                httpServer = startHttpServer(() -> {
+                    StringBuilder text = new StringBuilder();
+                    for (MetricsRegistry exposed : HTTP_REGISTRIES) {
+                        text.append(exposed.toText());
+                    }
+                    return text.toString();
+                }, port);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 注销MBean，不再在HTTP上输出。同名的MBean已经被新的注册表替换时不动它
+     */
+    public static synchronized void unexpose(MetricsRegistry registry) {
+        HTTP_REGISTRIES.remove(registry);
+        try {
+            ObjectName objectName = objectName(registry);
+            if (JMX_REGISTRIES.remove(objectName, registry)) {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                if (server.isRegistered(objectName)) {
+                    server.unregisterMBean(objectName);
+                }
+            }
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static ObjectName objectName(MetricsRegistry registry) throws JMException {
+        return new ObjectName("org.yangxin:type=Metrics,name=" + registry.name());
+    }
+
+    /**
+     * 单独的一个线程处理请求，不占用服务端的IO线程
+     */
+    public static HttpServer startHttpServer(MetricsRegistry registry, int port) throws IOException {
+        return startHttpServer(registry::toText, port);
+    }
+
+    private static HttpServer startHttpServer(Supplier<String> text, int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = text.get().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        System.out.println("指标地址：http://localhost:" + port + "/metrics");
+        return server;
+    }
+
+    /**
+     * 属性列表跟着注册表走，后来添加的指标也能看到
+     */
+    private static class RegistryMBean implements DynamicMBean {
+
+        private final MetricsRegistry registry;
+
+        RegistryMBean(MetricsRegistry registry) {
+            this.registry = registry;
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Number value = registry.snapshot().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("指标是只读的：" + attribute.getName());
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Number> snapshot = registry.snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                Number value = snapshot.get(attribute);
+                if (value != null) {
+                    list.add(new Attribute(attribute, value));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            Map<String, Number> snapshot = registry.snapshot();
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[snapshot.size()];
+            int i = 0;
+            for (Map.Entry<String, Number> entry : snapshot.entrySet()) {
+                attributes[i++] = new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+                        entry.getKey(), true, false, false);
+            }
+            return new MBeanInfo(MetricsRegistry.class.getName(), "指标：" + registry.name(), attributes,
+                    null, null, null);
+        }
+    }
+}
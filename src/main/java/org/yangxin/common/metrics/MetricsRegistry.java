@@ -0,0 +1,93 @@
+package org.yangxin.common.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * 一个服务端的全部指标。计数器是LongAdder，多线程累加时按线程分散到不同的槽里，热点路径上几乎没有竞争；
+ * 仪表是读取时才计算的LongSupplier；直方图是LatencyHistogram。
+ * 指标名用Prometheus的命名习惯，计数器以_total结尾。同名指标只创建一次，热点路径上应该先拿到引用再用。
+ *
+ * @author yangxin
+ * 2026/10/17 22:00
+ */
+public class MetricsRegistry {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final String name;
+    private final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+
+    /**
+     * @param name 注册到JMX时的名字，例如nio-chat
+     */
+    public MetricsRegistry(String name) {
+        this.name = name;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    public void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    public LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, key -> new LatencyHistogram());
+    }
+
+    /**
+     * 所有指标当前的值，直方图展开成_count、_mean、_p50、_p90、_p99、_p999、_max几项
+     */
+    public Map<String, Number> snapshot() {
+        Map<String, Number> snapshot = new LinkedHashMap<>();
+        counters.forEach((key, counter) -> snapshot.put(key, counter.sum()));
+        gauges.forEach((key, gauge) -> snapshot.put(key, gauge.getAsLong()));
+        histograms.forEach((key, histogram) -> {
+            snapshot.put(key + "_count", histogram.count());
+            snapshot.put(key + "_mean", histogram.mean());
+            for (double quantile : QUANTILES) {
+                snapshot.put(key + "_p" + quantileSuffix(quantile), histogram.valueAtPercentile(quantile * 100));
+            }
+            snapshot.put(key + "_max", histogram.max());
+        });
+        return snapshot;
+    }
+
+    /**
+     * Prometheus文本格式，直方图按summary输出
+     */
+    public String toText() {
+        StringBuilder text = new StringBuilder();
+        counters.forEach((key, counter) -> text.append("# TYPE ").append(key).append(" counter\n")
+                .append(key).append(' ').append(counter.sum()).append('\n'));
+        gauges.forEach((key, gauge) -> text.append("# TYPE ").append(key).append(" gauge\n")
+                .append(key).append(' ').append(gauge.getAsLong()).append('\n'));
+        histograms.forEach((key, histogram) -> {
+            text.append("# TYPE ").append(key).append(" summary\n");
+            for (double quantile : QUANTILES) {
+                text.append(key).append("{quantile=\"").append(quantile).append("\"} ")
+                        .append(histogram.valueAtPercentile(quantile * 100)).append('\n');
+            }
+            text.append(key).append("_sum ").append(histogram.sum()).append('\n');
+            text.append(key).append("_count ").append(histogram.count()).append('\n');
+        });
+        return text.toString();
+    }
+
+    private static String quantileSuffix(double quantile) {
+        // 0.5 -> 50, 0.999 -> 999
+        String digits = String.valueOf(quantile).substring(2);
+        return digits.length() == 1 ? digits + "0" : digits;
+    }
+}
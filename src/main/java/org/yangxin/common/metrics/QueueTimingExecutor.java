@@ -0,0 +1,58 @@
+package org.yangxin.common.metrics;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 包一层ExecutorService，记录每个任务从提交到开始执行等了多久。
+ * 用在AIO的通道组上时，记录的就是完成回调在线程池里排队的时间：一直很高说明线程不够，或者有回调太慢占住了线程。
+ *
+ * @author yangxin
+ * 2026/10/18 15:00
+ */
+public class QueueTimingExecutor extends AbstractExecutorService {
+
+    private final ExecutorService delegate;
+    private final LatencyHistogram queueDelay;
+
+    public QueueTimingExecutor(ExecutorService delegate, LatencyHistogram queueDelay) {
+        this.delegate = delegate;
+        this.queueDelay = queueDelay;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        long submitted = System.nanoTime();
+        delegate.execute(() -> {
+            queueDelay.record(System.nanoTime() - submitted);
+            task.run();
+        });
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        return delegate.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return delegate.awaitTermination(timeout, unit);
+    }
+}
@@ -0,0 +1,89 @@
+package org.yangxin.common.net;
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * AIO通道组用什么线程池执行完成回调。用-Daio.group=fixed|cached|fork_join选择，-Daio.threads指定线程数。
+ * 三种都是把回调交给这里创建的线程池，所以都可以用QueueTimingExecutor测回调的排队时间。
+ *
+ * @author yangxin
+ * 2026/10/18 15:00
+ */
+public enum ChannelGroupMode {
+
+    /**
+     * 固定threads个线程，回调太慢时后面的回调排队，适合回调都很短的场景
+     */
+    FIXED {
+        @Override
+        public ExecutorService newExecutor(int threads, String threadName) {
+            return Executors.newFixedThreadPool(threads, threadFactory(threadName));
+        }
+    },
+
+    /**
+     * 按需创建线程，空闲一段时间后回收，回调里偶尔有阻塞操作时不会卡住其他连接，但线程数没有上限
+     */
+    CACHED {
+        @Override
+        public ExecutorService newExecutor(int threads, String threadName) {
+            return Executors.newCachedThreadPool(threadFactory(threadName));
+        }
+
+        @Override
+        public AsynchronousChannelGroup newGroup(ExecutorService executor, int threads) throws IOException {
+            return AsynchronousChannelGroup.withCachedThreadPool(executor, threads);
+        }
+    },
+
+    /**
+     * threads个线程的ForkJoinPool，FIFO模式，每个线程有自己的任务队列，空闲线程从别的线程偷任务，
+     * 提交任务时争同一个队列的情况比FIXED少
+     */
+    FORK_JOIN {
+        @Override
+        public ExecutorService newExecutor(int threads, String threadName) {
+            AtomicInteger threadIndex = new AtomicInteger();
+            return new ForkJoinPool(threads, pool -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName(threadName + "-" + threadIndex.getAndIncrement());
+                return thread;
+            }, null, true);
+        }
+    };
+
+    public static final String PROPERTY = "aio.group";
+
+    /**
+     * @param threads    线程数，CACHED时不限制
+     * @param threadName 线程名的前缀
+     */
+    public abstract ExecutorService newExecutor(int threads, String threadName);
+
+    /**
+     * @param executor newExecutor创建的线程池，可以包一层QueueTimingExecutor
+     */
+    public AsynchronousChannelGroup newGroup(ExecutorService executor, int threads) throws IOException {
+        return AsynchronousChannelGroup.withThreadPool(executor);
+    }
+
+    /**
+     * 读取-Daio.group，没有设置时返回defaultMode
+     */
+    public static ChannelGroupMode fromSystemProperty(ChannelGroupMode defaultMode) {
+        String value = System.getProperty(PROPERTY);
+        return value == null ? defaultMode : valueOf(value.trim().toUpperCase().replace('-', '_'));
+    }
+
+    private static ThreadFactory threadFactory(String threadName) {
+        AtomicInteger threadIndex = new AtomicInteger();
+        return runnable -> new Thread(runnable, threadName + "-" + threadIndex.getAndIncrement());
+    }
+}
@@ -0,0 +1,48 @@
+package org.yangxin.common.net;
+
+import java.io.IOException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+
+/**
+ * SO_REUSEPORT：多个监听套接字绑定同一个端口，由内核按连接的四元组哈希把新连接分给它们，
+ * 每个监听者有自己的accept队列，分片之间不争同一把锁。需要JDK 9及以上，Linux 3.9及以上（或者BSD、macOS）。
+ *
+ * @author yangxin
+ * 2026/10/18 11:30
+ */
+public class ReusePort {
+
+    /**
+     * 工程按Java 8编译，只能通过反射拿JDK 9的StandardSocketOptions.SO_REUSEPORT，拿不到时为null
+     */
+    private static final SocketOption<Boolean> SO_REUSEPORT = lookup();
+
+    private ReusePort() {
+    }
+
+    /**
+     * 必须在bind之前调用
+     *
+     * @throws UnsupportedOperationException 当前JDK或者平台不支持
+     */
+    public static void enable(NetworkChannel channel) throws IOException {
+        if (SO_REUSEPORT == null || !channel.supportedOptions().contains(SO_REUSEPORT)) {
+            throw new UnsupportedOperationException("当前环境不支持SO_REUSEPORT，JDK：" + System.getProperty("java.version")
+                    + "，系统：" + System.getProperty("os.name"));
+        }
+        channel.setOption(SO_REUSEPORT, true);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> lookup() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (NoSuchFieldException e) {
+            return null;
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("读取SO_REUSEPORT失败", e);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.yangxin.common.room;
+
+/**
+ * 聊天室里进出房间的命令：
+ * <ul>
+ *     <li>"/join 房间名"：离开当前房间，加入指定的房间，房间不存在就创建</li>
+ *     <li>"/leave"：离开当前房间，回到大厅</li>
+ * </ul>
+ * 之后发的消息只有同一个房间的人能收到。
+ *
+ * @author yangxin
+ * 2026/10/18 09:30
+ */
+public class RoomCommand {
+
+    public static final String JOIN = "/join";
+    public static final String LEAVE = "/leave";
+    public static final int MAX_ROOM_LENGTH = 32;
+
+    private final String room;
+
+    private RoomCommand(String room) {
+        this.room = room;
+    }
+
+    public static boolean isCommand(String msg) {
+        return msg.equals(LEAVE) || msg.equals(JOIN) || msg.startsWith(JOIN + " ");
+    }
+
+    /**
+     * @return 要进入的房间，"/leave"返回大厅；房间名为空或太长时返回null
+     */
+    public static RoomCommand parse(String msg) {
+        if (msg.equals(LEAVE)) {
+            return new RoomCommand(RoomRegistry.LOBBY);
+        }
+        String room = msg.substring(JOIN.length()).trim();
+        if (room.isEmpty() || room.length() > MAX_ROOM_LENGTH) {
+            return null;
+        }
+        return new RoomCommand(room);
+    }
+
+    public String room() {
+        return room;
+    }
+
+    /**
+     * 回给发命令的人的提示
+     */
+    public static String reply(String room) {
+        return RoomRegistry.LOBBY.equals(room) ? "已回到大厅" : "已进入房间：" + room;
+    }
+
+    public static String usage() {
+        return "用法：" + JOIN + " 房间名（不超过" + MAX_ROOM_LENGTH + "个字符），" + LEAVE + " 回到大厅";
+    }
+}
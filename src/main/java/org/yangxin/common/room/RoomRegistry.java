@@ -0,0 +1,96 @@
+package org.yangxin.common.room;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 房间到成员的索引，成员类型由各个服务端决定（ChatSession、ClientHandler、ClientConnection）。
+ * 每个成员同一时刻只在一个房间里，加入新房间会自动离开原来的房间；连上时在大厅，离开房间也回到大厅。
+ * <ul>
+ *     <li>加入、离开、查询所在房间都是对两个ConcurrentHashMap的O(1)操作，不同房间之间没有锁竞争</li>
+ *     <li>广播只遍历目标房间的成员，代价和房间大小成正比，和服务器上的总连接数无关</li>
+ *     <li>成员集合是并发集合，广播时遍历的是弱一致的视图，期间进出房间的成员可能收到也可能收不到这条消息</li>
+ * </ul>
+ * 房间的创建和删除在compute里完成：第一个成员加入时创建，最后一个成员离开时删除，空房间不会留在索引里。
+ * 同一个成员的join和leave要串行调用，各个服务端都是在这个连接自己的读线程里调用的。
+ *
+ * @author yangxin
+ * 2026/10/18 09:30
+ */
+public class RoomRegistry<M> {
+
+    public static final String LOBBY = "lobby";
+
+    private final Map<String, Set<M>> membersByRoom = new ConcurrentHashMap<>();
+    private final Map<M, String> roomByMember = new ConcurrentHashMap<>();
+
+    /**
+     * @return 原来所在的房间，新成员返回null
+     */
+    public String join(M member, String room) {
+        String previous = roomByMember.put(member, room);
+        if (room.equals(previous)) {
+            return previous;
+        }
+        if (previous != null) {
+            removeMember(previous, member);
+        }
+        membersByRoom.compute(room, (key, members) -> {
+            if (members == null) {
+                members = ConcurrentHashMap.newKeySet();
+            }
+            members.add(member);
+            return members;
+        });
+        return previous;
+    }
+
+    /**
+     * 成员下线时调用
+     *
+     * @return 原来所在的房间，不在任何房间时返回null
+     */
+    public String leave(M member) {
+        String previous = roomByMember.remove(member);
+        if (previous != null) {
+            removeMember(previous, member);
+        }
+        return previous;
+    }
+
+    /**
+     * @return 不在任何房间时返回null
+     */
+    public String roomOf(M member) {
+        return roomByMember.get(member);
+    }
+
+    /**
+     * 房间不存在时返回空集合
+     */
+    public Set<M> members(String room) {
+        Set<M> members = membersByRoom.get(room);
+        return members == null ? Collections.emptySet() : members;
+    }
+
+    /**
+     * 和发送者同一个房间的所有成员，包括发送者自己
+     */
+    public Set<M> roommates(M member) {
+        String room = roomByMember.get(member);
+        return room == null ? Collections.emptySet() : members(room);
+    }
+
+    public int roomCount() {
+        return membersByRoom.size();
+    }
+
+    private void removeMember(String room, M member) {
+        membersByRoom.computeIfPresent(room, (key, members) -> {
+            members.remove(member);
+            return members.isEmpty() ? null : members;
+        });
+    }
+}
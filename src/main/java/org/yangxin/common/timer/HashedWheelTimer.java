@@ -0,0 +1,270 @@
+package org.yangxin.common.timer;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 哈希时间轮：时间被切成固定长度的tick，轮子上每个槽是一个双向链表，到期时间落在同一个槽里的任务挂在一起，
+ * 超过一圈的任务记下还要转几圈。添加、取消都是O(1)，每个tick只处理一个槽，与任务总数无关，适合给大量连接做超时检测。
+ * 代价是精度只有一个tick，任务只会晚于到期时间执行，不会提前。
+ * <p>
+ * 任何线程都可以添加和取消任务，它们先进入无锁队列，由驱动线程在推进时间轮时挂到槽上或摘下来。
+ * 驱动方式有两种：
+ * <ul>
+ *     <li>由调用方的事件循环驱动：每轮循环调用advance，任务就在事件循环线程里执行，不需要额外的线程和同步</li>
+ *     <li>调用start，由一个后台线程每个tick推进一次，任务在这个线程里执行，必须很快返回</li>
+ * </ul>
+ *
+ * @author yangxin
+ * 2026/10/17 23:20
+ */
+public class HashedWheelTimer {
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long startNanos;
+    /**
+     * 新加的任务，等驱动线程挂到槽上
+     */
+    private final Queue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<>();
+    /**
+     * 已取消但还挂在槽上的任务，等驱动线程摘下来
+     */
+    private final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    /**
+     * 下一个要处理的tick，只有驱动线程访问
+     */
+    private long tick;
+    private volatile Thread worker;
+
+    /**
+     * @param wheelSize 会向上取整到2的幂，应该略大于常用超时时间对应的tick数，这样大部分任务不用转圈
+     */
+    public HashedWheelTimer(long tickDuration, TimeUnit unit, int wheelSize) {
+        int size = Integer.highestOneBit(Math.max(2, wheelSize - 1)) << 1;
+        this.tickNanos = Math.max(1, unit.toNanos(tickDuration));
+        this.wheel = new Bucket[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * 可以在任意线程调用
+     */
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(this, task, System.nanoTime() + unit.toNanos(delay));
+        size.incrementAndGet();
+        pendingTimeouts.offer(timeout);
+        return timeout;
+    }
+
+    public long tickMillis() {
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(tickNanos));
+    }
+
+    /**
+     * 还没执行也没取消的任务数
+     */
+    public int size() {
+        return size.get();
+    }
+
+    public boolean isEmpty() {
+        return size.get() == 0;
+    }
+
+    /**
+     * 处理到nowNanos为止所有已经结束的tick，只能由驱动线程调用。
+     * 一个tick要等它整个过去才处理，所以落在这个tick里的任务都已经到期。
+     */
+    public void advance(long nowNanos) {
+        long lastFinishedTick = (nowNanos - startNanos) / tickNanos - 1;
+        while (tick <= lastFinishedTick) {
+            transferPending();
+            removeCancelled();
+            wheel[(int) tick & mask].expire();
+            tick++;
+        }
+    }
+
+    /**
+     * 启动一个后台线程驱动时间轮
+     */
+    public synchronized void start(String threadName) {
+        if (worker != null) {
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            while (worker == Thread.currentThread()) {
+                long nextTick = startNanos + (tick + 1) * tickNanos;
+                long sleepNanos = nextTick - System.nanoTime();
+                if (sleepNanos > 0) {
+                    LockSupport.parkNanos(this, sleepNanos);
+                    continue;
+                }
+                advance(System.nanoTime());
+            }
+        }, threadName);
+        thread.setDaemon(true);
+        worker = thread;
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        Thread thread = worker;
+        worker = null;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pendingTimeouts.poll()) != null) {
+            if (timeout.isCancelled()) {
+                // 还没挂上槽就取消了，size在cancel时已经减过
+                continue;
+            }
+            long deadlineTick = (timeout.deadlineNanos - startNanos) / tickNanos;
+            timeout.remainingRounds = (deadlineTick - tick) / wheel.length;
+            // 已经过期的任务放到当前tick，马上执行
+            wheel[(int) Math.max(deadlineTick, tick) & mask].add(timeout);
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelledTimeouts.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    /**
+     * 一个已安排的任务
+     */
+    public static final class Timeout {
+
+        private static final int INIT = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final HashedWheelTimer timer;
+        private final Runnable task;
+        private final long deadlineNanos;
+        private final AtomicInteger state = new AtomicInteger(INIT);
+        /**
+         * 以下字段只有驱动线程访问
+         */
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(HashedWheelTimer timer, Runnable task, long deadlineNanos) {
+            this.timer = timer;
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        /**
+         * 可以在任意线程调用，任务已经执行过时返回false
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(INIT, CANCELLED)) {
+                return false;
+            }
+            timer.size.decrementAndGet();
+            timer.cancelledTimeouts.offer(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+
+        private void expire() {
+            if (!state.compareAndSet(INIT, EXPIRED)) {
+                return;
+            }
+            timer.size.decrementAndGet();
+            try {
+                task.run();
+            } catch (Throwable t) {
+                // 一个任务出错不能影响同一个槽里的其他任务
+                t.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 槽：Timeout组成的双向链表，只有驱动线程访问
+     */
+    private static final class Bucket {
+
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            Timeout next = timeout.next;
+            if (timeout.prev != null) {
+                timeout.prev.next = next;
+            }
+            if (next != null) {
+                next.prev = timeout.prev;
+            }
+            if (timeout == head) {
+                head = next;
+            }
+            if (timeout == tail) {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+
+        /**
+         * 转到这个槽时，圈数用完的任务执行，其他的圈数减一
+         */
+        void expire() {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0) {
+                    remove(timeout);
+                    timeout.expire();
+                } else if (timeout.isCancelled()) {
+                    remove(timeout);
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+    }
+}
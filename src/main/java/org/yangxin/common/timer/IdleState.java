@@ -0,0 +1,18 @@
+package org.yangxin.common.timer;
+
+/**
+ * @author yangxin
+ * 2026/10/17 23:20
+ */
+public enum IdleState {
+
+    /**
+     * 太久没有收到任何数据，包括心跳的回应，通常说明对端已经不在了
+     */
+    READER_IDLE,
+
+    /**
+     * 太久没有写出任何数据，该发一个心跳了
+     */
+    WRITER_IDLE
+}
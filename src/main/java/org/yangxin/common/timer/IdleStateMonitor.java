@@ -0,0 +1,105 @@
+package org.yangxin.common.timer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 一个连接的空闲检测。收发数据时只更新时间戳，不碰时间轮；每种空闲只挂一个检查任务，
+ * 到期时看时间戳，真的空闲了就通知，否则按剩余时间重新挂上去。所以不论消息多频繁，每个连接每个超时周期只有一次O(1)的调度。
+ * <p>
+ * 超时时间通过-Didle.readSeconds（默认90）和-Didle.writeSeconds（默认30）设置，设为0表示不检测。
+ * 写空闲用来发心跳，读超时应该比它长，留出对端回应心跳的时间。
+ * 回调在驱动时间轮的线程里执行。
+ *
+ * @author yangxin
+ * 2026/10/17 23:20
+ */
+public class IdleStateMonitor {
+
+    public static final long READ_IDLE_SECONDS = Long.getLong("idle.readSeconds", 90);
+    public static final long WRITE_IDLE_SECONDS = Long.getLong("idle.writeSeconds", 30);
+
+    private final HashedWheelTimer timer;
+    private final long readIdleNanos;
+    private final long writeIdleNanos;
+    private final Consumer<IdleState> listener;
+    private volatile long lastReadNanos;
+    private volatile long lastWriteNanos;
+    private volatile HashedWheelTimer.Timeout readTimeout;
+    private volatile HashedWheelTimer.Timeout writeTimeout;
+    private volatile boolean stopped;
+
+    public IdleStateMonitor(HashedWheelTimer timer, Consumer<IdleState> listener) {
+        this(timer, READ_IDLE_SECONDS, WRITE_IDLE_SECONDS, TimeUnit.SECONDS, listener);
+    }
+
+    public IdleStateMonitor(HashedWheelTimer timer, long readIdleTime, long writeIdleTime, TimeUnit unit,
+                            Consumer<IdleState> listener) {
+        this.timer = timer;
+        this.readIdleNanos = unit.toNanos(readIdleTime);
+        this.writeIdleNanos = unit.toNanos(writeIdleTime);
+        this.listener = listener;
+    }
+
+    public void start() {
+        long now = System.nanoTime();
+        lastReadNanos = now;
+        lastWriteNanos = now;
+        if (readIdleNanos > 0) {
+            readTimeout = timer.newTimeout(this::checkRead, readIdleNanos, TimeUnit.NANOSECONDS);
+        }
+        if (writeIdleNanos > 0) {
+            writeTimeout = timer.newTimeout(this::checkWrite, writeIdleNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * 连接关闭时调用，可以在任意线程调用
+     */
+    public void stop() {
+        stopped = true;
+        HashedWheelTimer.Timeout timeout = readTimeout;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        timeout = writeTimeout;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    public void readActivity() {
+        lastReadNanos = System.nanoTime();
+    }
+
+    public void writeActivity() {
+        lastWriteNanos = System.nanoTime();
+    }
+
+    private void checkRead() {
+        if (stopped) {
+            return;
+        }
+        long remaining = readIdleNanos - (System.nanoTime() - lastReadNanos);
+        if (remaining > 0) {
+            readTimeout = timer.newTimeout(this::checkRead, remaining, TimeUnit.NANOSECONDS);
+            return;
+        }
+        // 先挂上下一次检查，回调里可能会关闭连接并stop
+        readTimeout = timer.newTimeout(this::checkRead, readIdleNanos, TimeUnit.NANOSECONDS);
+        listener.accept(IdleState.READER_IDLE);
+    }
+
+    private void checkWrite() {
+        if (stopped) {
+            return;
+        }
+        long remaining = writeIdleNanos - (System.nanoTime() - lastWriteNanos);
+        if (remaining > 0) {
+            writeTimeout = timer.newTimeout(this::checkWrite, remaining, TimeUnit.NANOSECONDS);
+            return;
+        }
+        writeTimeout = timer.newTimeout(this::checkWrite, writeIdleNanos, TimeUnit.NANOSECONDS);
+        listener.accept(IdleState.WRITER_IDLE);
+    }
+}
@@ -0,0 +1,99 @@
+package org.yangxin.common.user;
+
+/**
+ * 登录和私信的命令：
+ * <ul>
+ *     <li>"/login 名字"：以后别人看到的发送者是这个名字，别人也能给这个名字发私信；可以重复登录换名字</li>
+ *     <li>"/to 名字 消息"：只发给这个人，对方需要已经登录</li>
+ * </ul>
+ * 没有登录的连接显示为"客户端【端口】"，仍然可以聊天和发私信。
+ *
+ * @author yangxin
+ * 2026/10/18 10:20
+ */
+public class UserCommand {
+
+    public static final String LOGIN = "/login";
+    public static final String TO = "/to";
+    public static final int MAX_NAME_LENGTH = 32;
+
+    private final String target;
+    private final String text;
+
+    private UserCommand(String target, String text) {
+        this.target = target;
+        this.text = text;
+    }
+
+    public static boolean isLogin(String msg) {
+        return msg.equals(LOGIN) || msg.startsWith(LOGIN + " ");
+    }
+
+    public static boolean isDirect(String msg) {
+        return msg.equals(TO) || msg.startsWith(TO + " ");
+    }
+
+    /**
+     * @return 名字不合法时返回null
+     */
+    public static String parseLogin(String msg) {
+        String name = msg.substring(LOGIN.length()).trim();
+        return isValidName(name) ? name : null;
+    }
+
+    /**
+     * @return 没有名字或者没有消息时返回null
+     */
+    public static UserCommand parseDirect(String msg) {
+        String rest = msg.substring(TO.length()).trim();
+        int space = rest.indexOf(' ');
+        if (space <= 0) {
+            return null;
+        }
+        String text = rest.substring(space + 1).trim();
+        return text.isEmpty() ? null : new UserCommand(rest.substring(0, space), text);
+    }
+
+    /**
+     * 名字只能由字母、数字、下划线和减号组成，避免和"客户端【端口】"这种默认名字混淆
+     */
+    public static boolean isValidName(String name) {
+        if (name.isEmpty() || name.length() > MAX_NAME_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '_' && c != '-') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static String defaultName(int port) {
+        return "客户端【" + port + "】";
+    }
+
+    /**
+     * 收件人看到的私信
+     */
+    public static String direct(String sender, String text) {
+        return "[私信] " + sender + ": " + text;
+    }
+
+    public static String loginUsage() {
+        return "用法：" + LOGIN + " 名字（字母、数字、下划线或减号，不超过" + MAX_NAME_LENGTH + "个字符）";
+    }
+
+    public static String directUsage() {
+        return "用法：" + TO + " 名字 消息";
+    }
+
+    public String target() {
+        return target;
+    }
+
+    public String text() {
+        return text;
+    }
+}
@@ -0,0 +1,44 @@
+package org.yangxin.common.user;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 已登录用户的名字到连接的索引，私信按名字O(1)找到接收者。
+ * 名字唯一，登录用putIfAbsent抢占，下线用remove(name, member)，不会误删同名的新连接。
+ *
+ * @author yangxin
+ * 2026/10/18 10:20
+ */
+public class UserDirectory<M> {
+
+    private final Map<String, M> memberByName = new ConcurrentHashMap<>();
+
+    /**
+     * @return 名字已被别人占用时返回false
+     */
+    public boolean register(String name, M member) {
+        M previous = memberByName.putIfAbsent(name, member);
+        return previous == null || previous == member;
+    }
+
+    /**
+     * name为null时什么也不做，方便没登录过的连接下线时直接调用
+     */
+    public void unregister(String name, M member) {
+        if (name != null) {
+            memberByName.remove(name, member);
+        }
+    }
+
+    /**
+     * @return 不在线时返回null
+     */
+    public M lookup(String name) {
+        return memberByName.get(name);
+    }
+
+    public int size() {
+        return memberByName.size();
+    }
+}
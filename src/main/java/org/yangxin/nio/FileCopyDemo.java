@@ -1,8 +1,16 @@
 package org.yangxin.nio;
 
+import org.yangxin.aio.AsyncFileCopier;
+import org.yangxin.common.buffer.ByteBufferPool;
+
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * @author yangxin
@@ -11,22 +19,93 @@ import java.nio.channels.FileChannel;
 public class FileCopyDemo {
 
     private static final int ROUNDS = 10;
+    private static final double MB = 1024 * 1024;
+    private static final int DEFAULT_BUFFER_SIZE = 1024;
+    /**
+     * 每次映射的窗口大小，太大会占满地址空间，太小则map调用次数过多
+     */
+    private static final long DEFAULT_MAP_WINDOW_SIZE = 64 * 1024 * 1024;
+    /**
+     * 并行复制时每个任务负责的最小区间
+     */
+    private static final long DEFAULT_CHUNK_SIZE = 16 * 1024 * 1024;
 
+    /**
+     * 输出每轮的平均耗时和换算出的MB/s
+     */
     @SuppressWarnings("ResultOfMethodCallIgnored")
     private static void benchmark(FileCopyRunner fileCopyRunner, File source, File target) {
         long elapsed = 0L;
         for (int i = 0; i < ROUNDS; i++) {
-            long startTime = System.currentTimeMillis();
+            long startTime = System.nanoTime();
             fileCopyRunner.copyFile(source, target);
-            elapsed += System.currentTimeMillis() - startTime;
+            elapsed += System.nanoTime() - startTime;
             target.delete();
         }
-        System.out.println(fileCopyRunner + ": " + elapsed / ROUNDS);
+        double seconds = Math.max(elapsed, 1L) / 1e9;
+        System.out.printf("%s: %.2f ms, %.1f MB/s%n", fileCopyRunner, elapsed / 1e6 / ROUNDS,
+                source.length() * ROUNDS / MB / seconds);
     }
 
-    public static void main(String[] args) {
-        // 经典输入输出流单字节复制
-        FileCopyRunner noBufferStreamCopy = new FileCopyRunner() {
+    public static void main(String[] args) throws IOException {
+        // 默认复制一个临时生成的32MB文件，也可以在参数里指定源文件
+        File source;
+        if (args.length > 0) {
+            source = new File(args[0]);
+        } else {
+            source = File.createTempFile("file-copy-demo", ".src");
+            source.deleteOnExit();
+            writeRandomFile(source, 32 * 1024 * 1024);
+        }
+        File target = new File(source.getPath() + ".copy");
+
+        for (FileCopyRunner fileCopyRunner : new FileCopyRunner[]{
+                // 单字节复制太慢，只在小文件上比较
+                source.length() <= 1024 * 1024 ? noBufferStreamCopy() : null,
+                bufferedStreamCopy(DEFAULT_BUFFER_SIZE),
+                nioBufferCopy(DEFAULT_BUFFER_SIZE),
+                nioTransferCopy(),
+                mappedCopy(DEFAULT_MAP_WINDOW_SIZE),
+                parallelCopy(Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_SIZE),
+                new AsyncFileCopier()}) {
+            if (fileCopyRunner != null) {
+                benchmark(fileCopyRunner, source, target);
+                fileCopyRunner.shutdown();
+            }
+        }
+    }
+
+    /**
+     * 按名字创建复制策略，bufferSize对不使用缓冲区的策略无效
+     */
+    static FileCopyRunner runner(String name, int bufferSize) {
+        switch (name) {
+            case "noBufferStreamCopy":
+                return noBufferStreamCopy();
+            case "bufferedStreamCopy":
+                return bufferedStreamCopy(bufferSize);
+            case "nioBufferCopy":
+                return nioBufferCopy(bufferSize);
+            case "nioTransferCopy":
+                return nioTransferCopy();
+            case "mappedCopy":
+                return mappedCopy(DEFAULT_MAP_WINDOW_SIZE);
+            case "parallelCopy":
+                return parallelCopy(Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_SIZE);
+            case "pooledBufferCopy":
+                return pooledBufferCopy(ByteBufferPool.DEFAULT, bufferSize);
+            case "asyncCopy":
+                return new AsyncFileCopier();
+            default:
+                throw new IllegalArgumentException("未知的复制策略：" + name);
+        }
+    }
+
+    /**
+     * 经典输入输出流单字节复制
+     */
+    static FileCopyRunner noBufferStreamCopy() {
+        return new FileCopyRunner() {
 
             @Override
             public void copyFile(File source, File target) {
@@ -53,9 +132,13 @@ public class FileCopyDemo {
                 return "noBufferStreamCopy";
             }
         };
+    }
 
-        // 带缓冲的输入输出流复制
-        FileCopyRunner bufferedStreamCopy = new FileCopyRunner() {
+    /**
+     * 带缓冲的输入输出流复制
+     */
+    static FileCopyRunner bufferedStreamCopy(int bufferSize) {
+        return new FileCopyRunner() {
 
             @Override
             public void copyFile(File source, File target) {
@@ -65,7 +148,7 @@ public class FileCopyDemo {
                     inputStream = new BufferedInputStream(new FileInputStream(source));
                     outputStream = new BufferedOutputStream(new FileOutputStream(target));
 
-                    byte[] buffer = new byte[1024];
+                    byte[] buffer = new byte[bufferSize];
                     int result;
                     while ((result = inputStream.read(buffer)) != -1) {
                         outputStream.write(buffer, 0, result);
@@ -80,16 +163,16 @@ public class FileCopyDemo {
 
             @Override
             public String toString() {
-                return "bufferedStreamCopy";
+                return "bufferedStreamCopy(" + bufferSize + ")";
             }
         };
+    }
 
-//        bufferedStreamCopy.copyFile(new File("/home/yangxin/Downloads/kafka-study-coding-master.tar.gz"),
-//                new File("/home/yangxin/Downloads/1.tar.gz")
-//        );
-
-        // 通道复制
-        FileCopyRunner nioBufferCopy = new FileCopyRunner() {
+    /**
+     * 通道复制
+     */
+    static FileCopyRunner nioBufferCopy(int bufferSize) {
+        return new FileCopyRunner() {
 
             @Override
             public void copyFile(File source, File target) {
@@ -100,9 +183,8 @@ public class FileCopyDemo {
                     inputChannel = new FileInputStream(source).getChannel();
                     outputChannel = new FileOutputStream(target).getChannel();
 
-                    // 缓冲区大小为1k
                     // Buffer始终会从position位置读或写
-                    ByteBuffer buffer = ByteBuffer.allocate(1024);
+                    ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
                     while (inputChannel.read(buffer) != -1) {
                         buffer.flip();
                         while (buffer.hasRemaining()) {
@@ -120,11 +202,13 @@ public class FileCopyDemo {
 
             @Override
             public String toString() {
-                return "nioBufferCopy";
+                return "nioBufferCopy(" + bufferSize + ")";
             }
         };
+    }
 
-        FileCopyRunner nioTransferCopy = new FileCopyRunner() {
+    static FileCopyRunner nioTransferCopy() {
+        return new FileCopyRunner() {
 
             @Override
             public void copyFile(File source, File target) {
@@ -154,6 +238,181 @@ public class FileCopyDemo {
         };
     }
 
+    /**
+     * 和nioBufferCopy一样，只是buffer从池里借，复制大量小文件时不用每次都分配
+     */
+    static FileCopyRunner pooledBufferCopy(ByteBufferPool pool, int bufferSize) {
+        return new FileCopyRunner() {
+
+            @Override
+            public void copyFile(File source, File target) {
+                FileChannel inputChannel = null;
+                FileChannel outputChannel = null;
+                ByteBuffer buffer = pool.acquire(bufferSize);
+                try {
+                    inputChannel = new FileInputStream(source).getChannel();
+                    outputChannel = new FileOutputStream(target).getChannel();
+
+                    while (inputChannel.read(buffer) != -1) {
+                        buffer.flip();
+                        while (buffer.hasRemaining()) {
+                            outputChannel.write(buffer);
+                        }
+                        buffer.clear();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    pool.release(buffer);
+                    close(outputChannel);
+                    close(inputChannel);
+                }
+            }
+
+            @Override
+            public String toString() {
+                return "pooledBufferCopy(" + bufferSize + ")";
+            }
+        };
+    }
+
+    /**
+     * 把源文件按窗口映射进内存，再把映射区直接写入目标通道，省去用户态缓冲区
+     */
+    static FileCopyRunner mappedCopy(long windowSize) {
+        return new FileCopyRunner() {
+
+            @Override
+            public void copyFile(File source, File target) {
+                FileChannel inputChannel = null;
+                FileChannel outputChannel = null;
+                try {
+                    inputChannel = new FileInputStream(source).getChannel();
+                    outputChannel = new FileOutputStream(target).getChannel();
+
+                    long size = inputChannel.size();
+                    for (long position = 0L; position < size; position += windowSize) {
+                        // 映射区没有unmap的公开API，要等GC回收，所以窗口不宜过小
+                        MappedByteBuffer window = inputChannel.map(FileChannel.MapMode.READ_ONLY, position,
+                                Math.min(windowSize, size - position));
+                        while (window.hasRemaining()) {
+                            outputChannel.write(window);
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    close(outputChannel);
+                    close(inputChannel);
+                }
+            }
+
+            @Override
+            public String toString() {
+                return "mappedCopy(" + windowSize + ")";
+            }
+        };
+    }
+
+    /**
+     * 把文件切成若干区间，在ForkJoinPool上并发transferTo，适合单线程跑不满带宽的NVMe。
+     * 目标文件事先设置好长度，各个区间直接写到自己的偏移上，互不影响。
+     * 线程池归这个策略所有，用完要调用shutdown()。
+     */
+    static FileCopyRunner parallelCopy(int parallelism, long chunkSize) {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        return new FileCopyRunner() {
+
+            @Override
+            public void copyFile(File source, File target) {
+                FileChannel inputChannel = null;
+                try {
+                    inputChannel = new FileInputStream(source).getChannel();
+                    long size = inputChannel.size();
+                    // 预分配目标文件，同时截掉旧文件多余的部分
+                    try (RandomAccessFile file = new RandomAccessFile(target, "rw")) {
+                        file.setLength(size);
+                    }
+
+                    pool.invoke(new CopyRange(inputChannel, target, 0L, size, chunkSize));
+                } catch (IOException | UncheckedIOException e) {
+                    e.printStackTrace();
+                } finally {
+                    close(inputChannel);
+                }
+            }
+
+            @Override
+            public void shutdown() {
+                pool.shutdown();
+            }
+
+            @Override
+            public String toString() {
+                return "parallelCopy(" + parallelism + ", " + chunkSize + ")";
+            }
+        };
+    }
+
+    /**
+     * 复制[start, end)区间，超过chunkSize就一分为二。
+     * transferTo按绝对位置读源通道，可以共用；写入端每个任务各开一个通道，定位到自己的偏移。
+     */
+    private static class CopyRange extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel source;
+        private final File target;
+        private final long start;
+        private final long end;
+        private final long chunkSize;
+
+        CopyRange(FileChannel source, File target, long start, long end, long chunkSize) {
+            this.source = source;
+            this.target = target;
+            this.start = start;
+            this.end = end;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > chunkSize) {
+                long middle = start + (end - start) / 2;
+                invokeAll(new CopyRange(source, target, start, middle, chunkSize),
+                        new CopyRange(source, target, middle, end, chunkSize));
+                return;
+            }
+
+            try (FileChannel outputChannel = FileChannel.open(target.toPath(), StandardOpenOption.WRITE)) {
+                outputChannel.position(start);
+                long position = start;
+                while (position < end) {
+                    position += source.transferTo(position, end - position, outputChannel);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * 生成指定大小的随机内容文件，供基准测试使用
+     */
+    static void writeRandomFile(File file, long size) throws IOException {
+        byte[] chunk = new byte[1024 * 1024];
+        new Random(size).nextBytes(chunk);
+        try (OutputStream outputStream = new FileOutputStream(file)) {
+            long written = 0L;
+            while (written < size) {
+                int length = (int) Math.min(chunk.length, size - written);
+                outputStream.write(chunk, 0, length);
+                written += length;
+            }
+        }
+    }
+
     private static void close(Closeable closeable) {
         if (closeable == null) {
             return;
@@ -166,12 +425,3 @@ public class FileCopyDemo {
         }
     }
 }
-
-/**
- * @author yangxin
- * 2020/09/27 15:03
- */
-interface FileCopyRunner {
-
-    void copyFile(File source, File target);
-}
@@ -0,0 +1,20 @@
+package org.yangxin.nio;
+
+import java.io.File;
+
+/**
+ * 文件复制策略，出错时打印异常而不是抛出
+ *
+ * @author yangxin
+ * 2020/09/27 15:03
+ */
+public interface FileCopyRunner {
+
+    void copyFile(File source, File target);
+
+    /**
+     * 释放策略自己持有的线程池等资源，之后不能再复制。大多数策略什么都不持有
+     */
+    default void shutdown() {
+    }
+}
@@ -0,0 +1,247 @@
+package org.yangxin.nio;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * 可续传、带分块校验的复制。
+ * 目标文件旁边放一个清单文件，记录源文件的长度、修改时间，以及目标文件每一块的CRC32和已经确认写完的块数。
+ * <ul>
+ *     <li>源文件没变：从清单记录的位置继续，已经写完的部分既不读也不写</li>
+ *     <li>源文件变了：从头读一遍源文件，边读边算CRC32，和清单里的值一样的块不写，只写变化的块</li>
+ * </ul>
+ * 每写完一段先force再更新清单，进程被杀或者断电后清单里记录的块一定已经落盘。
+ * 校验值只在复制时计算，目标文件被别人改写而长度不变时检测不到。
+ *
+ * @author yangxin
+ * 2026/10/17 20:45
+ */
+public class ResumableCopier implements FileCopyRunner {
+
+    private static final String MANIFEST_SUFFIX = ".copy-manifest";
+    private static final int MANIFEST_MAGIC = 0x52435031;
+    /**
+     * 每写这么多块保存一次清单
+     */
+    private static final int PERSIST_INTERVAL = 64;
+
+    private final int blockSize;
+
+    public ResumableCopier() {
+        this(1024 * 1024);
+    }
+
+    public ResumableCopier(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    @Override
+    public void copyFile(File source, File target) {
+        try {
+            copy(source, target);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public Result copy(File source, File target) throws IOException {
+        long sourceLength = source.length();
+        long sourceModified = source.lastModified();
+        int blocks = (int) ((sourceLength + blockSize - 1) / blockSize);
+        File manifestFile = new File(target.getPath() + MANIFEST_SUFFIX);
+
+        Manifest manifest = Manifest.load(manifestFile, blockSize, target.length());
+        int startBlock = 0;
+        if (manifest != null && manifest.sourceLength == sourceLength && manifest.sourceModified == sourceModified) {
+            // 源文件没变，清单里确认过的块可以整段跳过
+            startBlock = Math.min(manifest.completedBlocks, blocks);
+        }
+        int[] checksums = manifest != null ? Arrays.copyOf(manifest.checksums, blocks) : new int[blocks];
+        // 旧清单只覆盖到它记录的块数，之后的块没有可比较的校验值
+        int knownBlocks = manifest != null ? Math.min(manifest.checksums.length, blocks) : 0;
+        Manifest progress = new Manifest(sourceLength, sourceModified, blockSize, startBlock, checksums);
+        progress.knownBlocks = Math.max(startBlock, knownBlocks);
+
+        Result result = new Result();
+        if (startBlock == blocks && target.length() == sourceLength) {
+            result.skippedBytes = sourceLength;
+            progress.save(manifestFile);
+            return result;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(blockSize);
+        CRC32 crc = new CRC32();
+        try (FileChannel inputChannel = new FileInputStream(source).getChannel();
+             RandomAccessFile targetFile = new RandomAccessFile(target, "rw")) {
+            FileChannel outputChannel = targetFile.getChannel();
+            int unsaved = 0;
+            for (int block = startBlock; block < blocks; block++) {
+                long position = (long) block * blockSize;
+                buffer.clear();
+                buffer.limit((int) Math.min(blockSize, sourceLength - position));
+                while (buffer.hasRemaining()) {
+                    if (inputChannel.read(buffer, position + buffer.position()) < 0) {
+                        throw new EOFException("复制过程中源文件变短了：" + source);
+                    }
+                }
+                buffer.flip();
+                result.readBytes += buffer.remaining();
+
+                crc.reset();
+                crc.update(buffer);
+                int checksum = (int) crc.getValue();
+                buffer.flip();
+
+                if (block < knownBlocks && checksums[block] == checksum) {
+                    result.skippedBytes += buffer.remaining();
+                } else {
+                    result.writtenBytes += buffer.remaining();
+                    while (buffer.hasRemaining()) {
+                        outputChannel.write(buffer, position + buffer.position());
+                    }
+                    checksums[block] = checksum;
+                    unsaved++;
+                }
+
+                progress.completedBlocks = block + 1;
+                progress.knownBlocks = Math.max(progress.knownBlocks, block + 1);
+                if (unsaved >= PERSIST_INTERVAL) {
+                    outputChannel.force(false);
+                    progress.save(manifestFile);
+                    unsaved = 0;
+                }
+            }
+            result.skippedBytes += (long) startBlock * blockSize;
+
+            targetFile.setLength(sourceLength);
+            outputChannel.force(false);
+        }
+        progress.save(manifestFile);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "resumableCopy(" + blockSize + ")";
+    }
+
+    /**
+     * 一次复制读了多少、写了多少、跳过了多少字节
+     */
+    public static class Result {
+
+        private long readBytes;
+        private long writtenBytes;
+        private long skippedBytes;
+
+        public long readBytes() {
+            return readBytes;
+        }
+
+        public long writtenBytes() {
+            return writtenBytes;
+        }
+
+        /**
+         * 因为续传或者校验值相同而没有写的字节数
+         */
+        public long skippedBytes() {
+            return skippedBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "read: " + readBytes + ", written: " + writtenBytes + ", skipped: " + skippedBytes;
+        }
+    }
+
+    private static class Manifest {
+
+        private final long sourceLength;
+        private final long sourceModified;
+        private final int blockSize;
+        private int completedBlocks;
+        /**
+         * checksums里前多少个有效。源文件变了的时候，还没重新比较的块仍然是目标文件旧内容的校验值
+         */
+        private int knownBlocks;
+        private final int[] checksums;
+
+        Manifest(long sourceLength, long sourceModified, int blockSize, int completedBlocks, int[] checksums) {
+            this.sourceLength = sourceLength;
+            this.sourceModified = sourceModified;
+            this.blockSize = blockSize;
+            this.completedBlocks = completedBlocks;
+            this.checksums = checksums;
+            this.knownBlocks = checksums.length;
+        }
+
+        /**
+         * @return 清单不存在、损坏、块大小不同或者和目标文件对不上时返回null，退化为完整复制
+         */
+        static Manifest load(File file, int blockSize, long targetLength) {
+            if (!file.isFile()) {
+                return null;
+            }
+
+            try (DataInputStream in = new DataInputStream(Files.newInputStream(file.toPath()))) {
+                if (in.readInt() != MANIFEST_MAGIC) {
+                    return null;
+                }
+                long sourceLength = in.readLong();
+                long sourceModified = in.readLong();
+                int manifestBlockSize = in.readInt();
+                int completedBlocks = in.readInt();
+                int[] checksums = new int[in.readInt()];
+                for (int i = 0; i < checksums.length; i++) {
+                    checksums[i] = in.readInt();
+                }
+
+                // 目标文件被截短或者删掉了，清单里的校验值不再可信
+                if (manifestBlockSize != blockSize || targetLength < Math.min(sourceLength,
+                        (long) checksums.length * blockSize)) {
+                    return null;
+                }
+                return new Manifest(sourceLength, sourceModified, blockSize,
+                        Math.min(completedBlocks, checksums.length), checksums);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        /**
+         * 先写临时文件再改名，中途被打断也不会留下半个清单
+         */
+        void save(File file) throws IOException {
+            File temp = new File(file.getPath() + ".tmp");
+            try (FileOutputStream fileOutputStream = new FileOutputStream(temp);
+                 DataOutputStream out = new DataOutputStream(fileOutputStream)) {
+                out.writeInt(MANIFEST_MAGIC);
+                out.writeLong(sourceLength);
+                out.writeLong(sourceModified);
+                out.writeInt(blockSize);
+                out.writeInt(completedBlocks);
+                out.writeInt(knownBlocks);
+                for (int i = 0; i < knownBlocks; i++) {
+                    out.writeInt(checksums[i]);
+                }
+                out.flush();
+                fileOutputStream.getFD().sync();
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package org.yangxin.nio;
+
+import org.yangxin.common.buffer.ByteBufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 目录树批量复制。每个目录是一个ForkJoin任务，边遍历边把子目录和成批的文件拆成子任务，
+ * 空闲的线程会去偷其它线程的任务，遍历和复制都是并行的。
+ * 小文件用池化的buffer一次读完，大文件用transferTo；符号链接和特殊文件跳过。
+ * 复制失败的文件计入errors，不计入files和bytes。
+ * 用法：TreeCopier source target [parallelism]
+ *
+ * @author yangxin
+ * 2026/10/17 20:30
+ */
+public class TreeCopier {
+
+    /**
+     * 不超过这个大小的文件用池化buffer复制，正好是池的最大级别
+     */
+    private static final long SMALL_FILE_THRESHOLD = 64 * 1024;
+    /**
+     * 一个目录里的文件按批拆分，平铺着几十万文件的目录也能分给多个线程
+     */
+    private static final int FILES_PER_TASK = 64;
+
+    private final ForkJoinPool pool;
+    private final ByteBufferPool bufferPool = ByteBufferPool.DEFAULT;
+
+    private final LongAdder files = new LongAdder();
+    private final LongAdder directories = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    public TreeCopier() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public TreeCopier(int parallelism) {
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * 把source目录下的内容复制到target，target不存在时自动创建。同一个TreeCopier不要同时复制多棵树。
+     */
+    public Report copyTree(Path source, Path target) {
+        files.reset();
+        directories.reset();
+        bytes.reset();
+        skipped.reset();
+        errors.reset();
+
+        long start = System.nanoTime();
+        pool.invoke(new DirectoryCopy(source, target));
+        return new Report(files.sum(), directories.sum(), bytes.sum(), skipped.sum(), errors.sum(),
+                System.nanoTime() - start);
+    }
+
+    /**
+     * 按文件大小选择复制方式。和FileCopyRunner不同，失败时抛出异常，由调用方计入errors
+     *
+     * @return 复制的字节数
+     */
+    private long copyFile(Path source, Path target) throws IOException {
+        try (FileChannel inputChannel = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel outputChannel = FileChannel.open(target, StandardOpenOption.WRITE,
+                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = inputChannel.size();
+            if (size <= SMALL_FILE_THRESHOLD) {
+                copyWithBuffer(inputChannel, outputChannel);
+            } else {
+                long transferred = 0L;
+                while (transferred < size) {
+                    transferred += inputChannel.transferTo(transferred, size - transferred, outputChannel);
+                }
+            }
+            return size;
+        }
+    }
+
+    /**
+     * 小文件用池化的buffer，一般一次就能读完
+     */
+    private void copyWithBuffer(FileChannel inputChannel, FileChannel outputChannel) throws IOException {
+        ByteBuffer buffer = bufferPool.acquire((int) SMALL_FILE_THRESHOLD);
+        try {
+            while (inputChannel.read(buffer) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    outputChannel.write(buffer);
+                }
+                buffer.clear();
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    private class DirectoryCopy extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path source;
+        private final Path target;
+
+        DirectoryCopy(Path source, Path target) {
+            this.source = source;
+            this.target = target;
+        }
+
+        @Override
+        protected void compute() {
+            List<RecursiveAction> tasks = new ArrayList<>();
+            try {
+                Files.createDirectories(target);
+                directories.increment();
+
+                List<Path> batch = new ArrayList<>(FILES_PER_TASK);
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(source)) {
+                    for (Path child : stream) {
+                        if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                            tasks.add(new DirectoryCopy(child, target.resolve(child.getFileName())));
+                        } else if (Files.isRegularFile(child, LinkOption.NOFOLLOW_LINKS)) {
+                            batch.add(child);
+                            if (batch.size() == FILES_PER_TASK) {
+                                tasks.add(new FileBatchCopy(batch, target));
+                                batch = new ArrayList<>(FILES_PER_TASK);
+                            }
+                        } else {
+                            skipped.increment();
+                        }
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    tasks.add(new FileBatchCopy(batch, target));
+                }
+            } catch (IOException e) {
+                errors.increment();
+                e.printStackTrace();
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    private class FileBatchCopy extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<Path> sources;
+        private final Path targetDirectory;
+
+        FileBatchCopy(List<Path> sources, Path targetDirectory) {
+            this.sources = sources;
+            this.targetDirectory = targetDirectory;
+        }
+
+        @Override
+        protected void compute() {
+            for (Path source : sources) {
+                try {
+                    bytes.add(copyFile(source, targetDirectory.resolve(source.getFileName())));
+                    files.increment();
+                } catch (IOException e) {
+                    errors.increment();
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 一次复制的汇总结果
+     */
+    public static class Report {
+
+        private final long files;
+        private final long directories;
+        private final long bytes;
+        private final long skipped;
+        private final long errors;
+        private final long elapsedNanos;
+
+        Report(long files, long directories, long bytes, long skipped, long errors, long elapsedNanos) {
+            this.files = files;
+            this.directories = directories;
+            this.bytes = bytes;
+            this.skipped = skipped;
+            this.errors = errors;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public long files() {
+            return files;
+        }
+
+        public long directories() {
+            return directories;
+        }
+
+        public long bytes() {
+            return bytes;
+        }
+
+        /**
+         * 跳过的符号链接和特殊文件数量
+         */
+        public long skipped() {
+            return skipped;
+        }
+
+        /**
+         * 无法遍历的目录和复制失败的文件数量
+         */
+        public long errors() {
+            return errors;
+        }
+
+        public long elapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public double filesPerSecond() {
+            return files / (elapsedNanos / 1e9);
+        }
+
+        public double megabytesPerSecond() {
+            return bytes / (1024.0 * 1024) / (elapsedNanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("files: %d, directories: %d, MB: %.2f, skipped: %d, errors: %d, "
+                            + "elapsed: %d ms, files/s: %.0f, MB/s: %.2f",
+                    files, directories, bytes / (1024.0 * 1024), skipped, errors, elapsedNanos / 1_000_000,
+                    filesPerSecond(), megabytesPerSecond());
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("用法：TreeCopier source target [parallelism]");
+            return;
+        }
+        int parallelism = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        TreeCopier copier = new TreeCopier(parallelism);
+        System.out.println(copier.copyTree(Paths.get(args[0]), Paths.get(args[1])));
+    }
+}
@@ -1,36 +1,60 @@
 package org.yangxin.nio.chatroom.client;
 
+import org.yangxin.common.codec.FrameCodec;
+import org.yangxin.common.codec.FrameDecoder;
+import org.yangxin.common.file.FileCommand;
+import org.yangxin.common.file.FileReceiver;
+
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @author yangxin
  * 2020/09/28 19:25
  */
-@SuppressWarnings({"StatementWithEmptyBody", "AlibabaAvoidManuallyCreateThread"})
+@SuppressWarnings("AlibabaAvoidManuallyCreateThread")
 public class ChatClient {
 
     private static final String DEFAULT_SERVER_HOST = "127.0.0.1";
     private static final int DEFAULT_SERVER_PORT = 8888;
     private static final String QUIT = "quit";
     private static final int BUFFER = 1024;
+    /**
+     * 收到的文件保存在这里
+     */
+    private static final Path DOWNLOAD_DIR = Paths.get("chat-downloads");
 
     private final String HOST;
     private final int PORT;
     private SocketChannel channel;
     private final ByteBuffer READ_BUFFER = ByteBuffer.allocate(BUFFER);
-    private final ByteBuffer WRITE_BUFFER = ByteBuffer.allocate(BUFFER);
     private Selector selector;
-    private final Charset CHARSET = StandardCharsets.UTF_8;
+    private final FrameCodec CODEC = FrameCodec.DEFAULT;
+    private final FrameDecoder DECODER = CODEC.newDecoder(this::handlesFrame);
+    /**
+     * 正在接收的文件，只在selector线程里访问
+     */
+    private FileReceiver receiver;
+    /**
+     * 发文件的线程在socket写满时阻塞在这里等OP_WRITE，和读用的selector互不干扰
+     */
+    private Selector writeSelector;
+    /**
+     * 用户输入线程发消息、selector线程回心跳，同一时刻只能有一个线程往socket里写帧
+     */
+    private final ReentrantLock sendLock = new ReentrantLock();
 
     public ChatClient() {
         this(DEFAULT_SERVER_HOST, DEFAULT_SERVER_PORT);
@@ -96,12 +120,9 @@ public class ChatClient {
 
     private void handlesReadable(SelectionKey key) throws IOException {
         SocketChannel channel = (SocketChannel) key.channel();
-        String msg = receive(channel);
-        if (msg == null || msg.isEmpty()) {
+        if (!receive(channel)) {
             // 服务器异常
             close(selector);
-        } else {
-            System.out.println(msg);
         }
     }
 
@@ -116,12 +137,70 @@ public class ChatClient {
         channel.register(selector, SelectionKey.OP_READ);
     }
 
-    private String receive(SocketChannel client) throws IOException {
-        READ_BUFFER.clear();
-        while (client.read(READ_BUFFER) > 0) {
+    /**
+     * 读到的数据交给解码器，每解析出一个完整的帧就打印一条消息
+     *
+     * @return 服务器是否还连着
+     */
+    private boolean receive(SocketChannel client) throws IOException {
+        int read;
+        while ((read = client.read(READ_BUFFER)) > 0) {
+            READ_BUFFER.flip();
+            DECODER.decode(READ_BUFFER);
+            READ_BUFFER.clear();
+        }
+        return read >= 0;
+    }
+
+    /**
+     * 收到"/file"通知后，接下来的帧是文件内容，写进下载目录
+     */
+    private void handlesFrame(ByteBuffer frame) throws IOException {
+        if (receiver != null) {
+            receiver.write(frame);
+            if (receiver.isComplete()) {
+                fileReceived();
+            }
+            return;
+        }
+
+        if (!frame.hasRemaining()) {
+            pong();
+            return;
+        }
+
+        String msg = FrameCodec.toString(frame);
+        FileCommand command = FileCommand.isCommand(msg) ? FileCommand.parseAnnounce(msg) : null;
+        if (command == null) {
+            System.out.println(msg);
+            return;
+        }
+
+        System.out.println(command.sender() + "发来文件：" + command.name() + "，" + command.size() + "字节");
+        receiver = FileReceiver.toDirectory(command, DOWNLOAD_DIR);
+        if (receiver.isComplete()) {
+            fileReceived();
+        }
+    }
+
+    private void fileReceived() {
+        System.out.println("文件已保存到：" + receiver.path().toAbsolutePath());
+        close(receiver.channel());
+        receiver = null;
+    }
+
+    /**
+     * 服务端的心跳是一个空帧，回一个空帧。用户正在发消息或文件时不用回，服务端已经能收到数据了
+     */
+    private void pong() throws IOException {
+        if (!sendLock.tryLock()) {
+            return;
+        }
+        try {
+            writeFully(CODEC.encode(""));
+        } finally {
+            sendLock.unlock();
         }
-        READ_BUFFER.flip();
-        return String.valueOf(CHARSET.decode(READ_BUFFER));
     }
 
     public void send(String msg) throws IOException {
@@ -129,19 +208,86 @@ public class ChatClient {
             return;
         }
 
-        WRITE_BUFFER.clear();
-        WRITE_BUFFER.put(CHARSET.encode(msg));
-        WRITE_BUFFER.flip();
-        while (WRITE_BUFFER.hasRemaining()) {
-            channel.write(WRITE_BUFFER);
+        sendLock.lock();
+        try {
+            doSend(msg);
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    private void doSend(String msg) throws IOException {
+
+        // "/file 路径"：把本地文件发给聊天室里的其他人
+        if (FileCommand.isCommand(msg)) {
+            sendFile(Paths.get(msg.substring(FileCommand.PREFIX.length())));
+            return;
+        }
+
+        ByteBuffer frame = CODEC.encode(msg);
+        while (frame.hasRemaining()) {
+            channel.write(frame);
         }
 
         // 检查用户是否准备退出
         if (readyToQuit(msg)) {
+            close(writeSelector);
             close(selector);
         }
     }
 
+    /**
+     * 先发"/file 大小 文件名"，再把文件切成帧发出去，每帧的头部之后用transferTo直接从文件写进socket
+     */
+    private void sendFile(Path path) throws IOException {
+        if (!Files.isRegularFile(path)) {
+            System.out.println("文件不存在：" + path);
+            return;
+        }
+
+        try (FileChannel fileChannel = FileChannel.open(path)) {
+            long size = fileChannel.size();
+            writeFully(CODEC.encode(FileCommand.upload(size, path.getFileName().toString())));
+
+            ByteBuffer header = ByteBuffer.allocate(5);
+            long position = 0L;
+            while (position < size) {
+                int length = (int) Math.min(FileCommand.CHUNK_SIZE, size - position);
+                header.clear();
+                CODEC.writeHeader(header, length);
+                header.flip();
+                writeFully(header);
+
+                long chunkEnd = position + length;
+                while (position < chunkEnd) {
+                    long transferred = fileChannel.transferTo(position, chunkEnd - position, channel);
+                    if (transferred == 0) {
+                        awaitWritable();
+                    }
+                    position += transferred;
+                }
+            }
+            System.out.println("文件已发送：" + path + "，" + size + "字节");
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.write(buffer) == 0) {
+                awaitWritable();
+            }
+        }
+    }
+
+    private void awaitWritable() throws IOException {
+        if (writeSelector == null) {
+            writeSelector = Selector.open();
+            channel.register(writeSelector, SelectionKey.OP_WRITE);
+        }
+        writeSelector.select();
+        writeSelector.selectedKeys().clear();
+    }
+
     public static void main(String[] args) {
         ChatClient client = new ChatClient("127.0.0.1", 7777);
         client.start();
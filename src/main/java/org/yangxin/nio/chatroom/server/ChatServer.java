@@ -1,145 +1,255 @@
 package org.yangxin.nio.chatroom.server;
 
+import org.yangxin.common.bus.MessageBus;
+import org.yangxin.common.buffer.SharedBuffer;
+import org.yangxin.common.bus.RoomMessage;
+import org.yangxin.common.log.Logger;
+import org.yangxin.common.metrics.ChatMetrics;
+import org.yangxin.common.metrics.MetricsExporter;
+import org.yangxin.common.net.ReusePort;
+import org.yangxin.common.room.RoomRegistry;
+import org.yangxin.common.user.UserDirectory;
+
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
-import java.nio.channels.SocketChannel;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
+ * 主从Reactor：一个boss selector负责ACCEPT，N个worker selector各自在一个线程里负责读写。
+ * worker数量为0时退化为单Reactor，所有事件都在boss线程里处理。
+ * 分片模式（-Dshards=K）下同一个进程里起K个单Reactor的实例，用SO_REUSEPORT绑定同一个端口，由内核分配新连接；
+ * 每个分片有自己的房间表，房间消息先发给本分片的成员，再通过MessageBus交给其他分片发给它们那边的成员。
+ * 登录名在所有分片间共享，私信直接写进目标连接的写队列。
+ *
  * @author yangxin
  * 2020/09/27 21:15
  */
+@SuppressWarnings("AlibabaAvoidManuallyCreateThread")
 public class ChatServer {
 
+    private static final Logger LOG = Logger.getLogger(ChatServer.class);
+
     private static final int DEFAULT_PORT = 8888;
     private static final String QUIT = "quit";
-    private static final int BUFFER = 1024;
+    /**
+     * 大量客户端同时连接时，默认50的accept队列很容易溢出
+     */
+    private static final int BACKLOG = 1024;
+    /**
+     * 默认worker数量与CPU核数一致
+     */
+    private static final int DEFAULT_WORKER_COUNT = Runtime.getRuntime().availableProcessors();
 
-    private Selector selector;
-    private final ByteBuffer READ_BUFFER = ByteBuffer.allocate(BUFFER);
-    private final ByteBuffer WRITER_BUFFER = ByteBuffer.allocate(BUFFER);
-    private final Charset CHARSET = StandardCharsets.UTF_8;
     private final int PORT;
+    private final int WORKER_COUNT;
+    private final WriteBufferWaterMark WATER_MARK;
+    private final Set<ChatSession> sessions = ConcurrentHashMap.newKeySet();
+    private final ChatMetrics METRICS;
+    private final RoomRegistry<ChatSession> rooms = new RoomRegistry<>();
+    private final UserDirectory<ChatSession> users;
+    /**
+     * 分片之间的总线，不分片时为null
+     */
+    private final MessageBus<RoomMessage> BUS;
+    private MessageBus.Endpoint<RoomMessage> endpoint;
+    private ChatWorker boss;
+    private ChatWorker[] workers;
+    /**
+     * 只在boss线程里读写，不需要同步
+     */
+    private int nextWorkerIndex;
 
     public ChatServer() {
         this(DEFAULT_PORT);
     }
 
     public ChatServer(int port) {
+        this(port, DEFAULT_WORKER_COUNT);
+    }
+
+    /**
+     * @param port        监听端口
+     * @param workerCount worker selector的数量，为0时使用单Reactor模式
+     */
+    public ChatServer(int port, int workerCount) {
+        this(port, workerCount, WriteBufferWaterMark.DEFAULT);
+    }
+
+    /**
+     * @param port        监听端口
+     * @param workerCount worker selector的数量，为0时使用单Reactor模式
+     * @param waterMark   每个连接写队列的高低水位及溢出策略
+     */
+    public ChatServer(int port, int workerCount, WriteBufferWaterMark waterMark) {
+        this(port, workerCount, waterMark, "nio_chat", null, new UserDirectory<>());
+    }
+
+    /**
+     * @param name  指标的前缀
+     * @param bus   不为null时作为一个分片启动，用SO_REUSEPORT绑定端口
+     * @param users 所有分片共用的登录名索引
+     */
+    private ChatServer(int port, int workerCount, WriteBufferWaterMark waterMark, String name,
+                       MessageBus<RoomMessage> bus, UserDirectory<ChatSession> users) {
+        if (workerCount < 0) {
+            throw new IllegalArgumentException("workerCount: " + workerCount);
+        }
         this.PORT = port;
+        this.WORKER_COUNT = workerCount;
+        this.WATER_MARK = waterMark;
+        this.METRICS = new ChatMetrics(name, sessions::size);
+        this.BUS = bus;
+        this.users = users;
+    }
+
+    /**
+     * 分片模式：起shardCount个单Reactor的实例，每个跑在自己的线程里，当前线程等待它们全部退出
+     */
+    public static void startSharded(int port, int shardCount) {
+        MessageBus<RoomMessage> bus = new MessageBus<>();
+        UserDirectory<ChatSession> users = new UserDirectory<>();
+        Thread[] threads = new Thread[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            ChatServer shard = new ChatServer(port, 0, WriteBufferWaterMark.DEFAULT, "nio_chat_shard" + i, bus, users);
+            threads[i] = new Thread(shard::start, "nio-chat-shard-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
     }
 
     /**
      * 服务端主流程
      */
-    @SuppressWarnings("InfiniteLoopStatement")
     public void start() {
+        ServerSocketChannel channel = null;
         try {
-            ServerSocketChannel channel = ServerSocketChannel.open();
+            channel = ServerSocketChannel.open();
             channel.configureBlocking(false);
-            channel.socket().bind(new InetSocketAddress(PORT));
-
-            selector = Selector.open();
-            channel.register(selector, SelectionKey.OP_ACCEPT);
-            System.out.println("启动服务器，监听端口：" + PORT + "……");
-
-            while (true) {
-                // select()阻塞到至少有一个通道在你注册的事件上就绪了
-                selector.select();
-                Set<SelectionKey> keySet = selector.selectedKeys();
-                for (SelectionKey key : keySet) {
-                    // 处理被触发的事件
-                    handles(key);
-                }
-                keySet.clear();
+            if (BUS != null) {
+                ReusePort.enable(channel);
             }
+            channel.socket().bind(new InetSocketAddress(PORT), BACKLOG);
+
+            boss = new ChatWorker(this, "boss");
+            channel.register(boss.selector(), SelectionKey.OP_ACCEPT);
+            if (BUS != null) {
+                endpoint = BUS.join(boss::execute, this::deliver);
+            }
+
+            workers = new ChatWorker[WORKER_COUNT];
+            for (int i = 0; i < WORKER_COUNT; i++) {
+                workers[i] = new ChatWorker(this, "worker-" + i);
+                new Thread(workers[i], "nio-chat-worker-" + i).start();
+            }
+            LOG.info("启动服务器，监听端口：{}，worker数量：{}，{}……", PORT, WORKER_COUNT, WATER_MARK);
+            MetricsExporter.expose(METRICS.registry());
+
+            // boss的事件循环直接跑在当前线程
+            boss.run();
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
-            close(selector);
+            if (endpoint != null) {
+                endpoint.leave();
+            }
+            close(channel);
+            shutdownWorkers();
+            MetricsExporter.unexpose(METRICS.registry());
         }
     }
 
-    private void handles(SelectionKey key) throws IOException {
-        // ACCEPT事件：和客户端建立了连接
-        if (key.isAcceptable()) {
-            handlesAcceptable(key);
-        } else if (key.isReadable()) {
-            // READ事件：客户端发送了消息
-            handlesReadable(key);
+    /**
+     * 本分片的成员已经发过了，再交给其他分片。不分片时什么也不做
+     */
+    void publish(String room, String text) {
+        if (endpoint != null && room != null) {
+            endpoint.publish(new RoomMessage(room, text));
         }
     }
 
-    private void handlesReadable(SelectionKey key) throws IOException {
-        SocketChannel channel = (SocketChannel) key.channel();
-        String forwardMsg = receive(channel);
-        if (forwardMsg == null || forwardMsg.isEmpty()) {
-            // 客户端异常
-            key.cancel();
-            // wakeup用于唤醒阻塞在select方法上的线程
-            selector.wakeup();
-        } else {
-            System.out.println(getClientName(channel) + "：" + forwardMsg);
-            forwardMessage(channel, forwardMsg);
-
-            // 检查用户是否退出
-            if (readyToQuit(forwardMsg)) {
-                key.cancel();
-                selector.wakeup();
-                System.out.println(getClientName(channel) + "已断开。");
+    /**
+     * 在boss线程里执行，其他分片发来的消息发给本分片这个房间里的所有人，消息在本分片只编码一次
+     */
+    private void deliver(RoomMessage message) {
+        SharedBuffer frame = ChatWorker.encodeFrame(message.text());
+        for (ChatSession session : rooms.members(message.room())) {
+            if (session.write(frame)) {
+                METRICS.messagesOut().increment();
             }
         }
+        frame.release();
     }
 
-    private void handlesAcceptable(SelectionKey key) throws IOException {
-        ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
-        SocketChannel clientChannel = serverChannel.accept();
-        clientChannel.configureBlocking(false);
-        clientChannel.register(selector, SelectionKey.OP_READ);
+    /**
+     * 轮询选出负责新连接的worker，单Reactor模式下就是boss自己
+     */
+    ChatWorker nextWorker() {
+        if (WORKER_COUNT == 0) {
+            return boss;
+        }
 
-        System.out.println(getClientName(clientChannel) + "已连接。");
+        ChatWorker worker = workers[nextWorkerIndex];
+        nextWorkerIndex = (nextWorkerIndex + 1) % WORKER_COUNT;
+        return worker;
     }
 
-    private String getClientName(SocketChannel client) {
-        return "客户端【" + client.socket().getPort() + "】";
+    void addClient(ChatSession session) {
+        sessions.add(session);
+        rooms.join(session, RoomRegistry.LOBBY);
+        LOG.info("{}已连接。", session.name());
     }
 
-    private void forwardMessage(SocketChannel channel, String msg) throws IOException {
-        for (SelectionKey key : selector.keys()) {
-            if (key.isValid() && key.channel() instanceof SocketChannel) {
-                SocketChannel connectedChannel = (SocketChannel) key.channel();
-                if (!channel.equals(connectedChannel)) {
-                    WRITER_BUFFER.clear();
-                    WRITER_BUFFER.put(CHARSET.encode(getClientName(channel) + ": " + msg));
-                    WRITER_BUFFER.flip();
-                    while (WRITER_BUFFER.hasRemaining()) {
-                        connectedChannel.write(WRITER_BUFFER);
-                    }
-                }
-            }
+    void removeClient(ChatSession session) {
+        if (sessions.remove(session)) {
+            rooms.leave(session);
+            users.unregister(session.loginName(), session);
+            LOG.info("{}已断开。", session.name());
         }
     }
 
-    @SuppressWarnings("StatementWithEmptyBody")
-    private String receive(SocketChannel channel) throws IOException {
-        READ_BUFFER.clear();
-        while (channel.read(READ_BUFFER) > 0) {
-        }
-        READ_BUFFER.flip();
-        return String.valueOf(CHARSET.decode(READ_BUFFER));
+    RoomRegistry<ChatSession> rooms() {
+        return rooms;
+    }
+
+    UserDirectory<ChatSession> users() {
+        return users;
+    }
+
+    ChatMetrics metrics() {
+        return METRICS;
+    }
+
+    WriteBufferWaterMark writeBufferWaterMark() {
+        return WATER_MARK;
     }
 
     public boolean readyToQuit(String msg) {
         return  QUIT.equals(msg);
     }
 
+    private void shutdownWorkers() {
+        if (workers == null) {
+            return;
+        }
+
+        for (ChatWorker worker : workers) {
+            if (worker != null) {
+                worker.shutdown();
+            }
+        }
+    }
+
     private void close(Closeable closeable) {
         if (closeable == null) {
             return;
@@ -153,6 +263,11 @@ public class ChatServer {
     }
 
     public static void main(String[] args) {
+        int shards = Integer.getInteger("shards", 0);
+        if (shards > 0) {
+            startSharded(7777, shards);
+            return;
+        }
         ChatServer chatServer = new ChatServer(7777);
         chatServer.start();
     }
@@ -0,0 +1,291 @@
+package org.yangxin.nio.chatroom.server;
+
+import org.yangxin.common.buffer.SharedBuffer;
+import org.yangxin.common.codec.FrameDecoder;
+import org.yangxin.common.file.FileReceiver;
+import org.yangxin.common.timer.IdleStateMonitor;
+import org.yangxin.common.user.UserCommand;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 一个客户端连接的状态，作为attachment挂在SelectionKey上。
+ * 任何线程都可以往写队列里放消息，但只有所属worker的线程会真正写socket。
+ * 写队列里是FrameWrite或者FileRegion，文件在磁盘上，不占内存，不计入水位。
+ * 帧是多个连接共用的池化buffer，每个连接入队时retain一次，写完、被丢弃或者连接关闭时release。
+ *
+ * @author yangxin
+ * 2026/10/17 11:20
+ */
+public class ChatSession {
+
+    private final SocketChannel channel;
+    private final ChatWorker worker;
+    private final WriteBufferWaterMark waterMark;
+    private final Queue<Object> outboundQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicLong shedMessages = new AtomicLong();
+    /**
+     * 是否已经登记在worker本轮要flush的连接里，避免重复登记
+     */
+    final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private volatile boolean writable = true;
+    private volatile boolean closed;
+    private SelectionKey key;
+    private FrameDecoder decoder;
+    /**
+     * 正在上传的文件，只在所属worker的线程里访问
+     */
+    private FileReceiver receiver;
+    private IdleStateMonitor idle;
+    /**
+     * 别人看到的名字，连接建立时算一次，登录后换成登录名，转发时不用再拼字符串
+     */
+    private volatile String name;
+    /**
+     * 登录名，没登录时为null，只在所属worker的线程里访问
+     */
+    private String loginName;
+
+    public ChatSession(SocketChannel channel, ChatWorker worker, WriteBufferWaterMark waterMark) {
+        this.channel = channel;
+        this.worker = worker;
+        this.waterMark = waterMark;
+        this.name = UserCommand.defaultName(channel.socket().getPort());
+    }
+
+    public String name() {
+        return name;
+    }
+
+    String loginName() {
+        return loginName;
+    }
+
+    void login(String loginName) {
+        this.loginName = loginName;
+        this.name = loginName;
+    }
+
+    public SocketChannel channel() {
+        return channel;
+    }
+
+    public ChatWorker worker() {
+        return worker;
+    }
+
+    void attach(SelectionKey key) {
+        this.key = key;
+    }
+
+    void decoder(FrameDecoder decoder) {
+        this.decoder = decoder;
+    }
+
+    FrameDecoder decoder() {
+        return decoder;
+    }
+
+    IdleStateMonitor idle() {
+        return idle;
+    }
+
+    void idle(IdleStateMonitor idle) {
+        this.idle = idle;
+    }
+
+    FileReceiver receiver() {
+        return receiver;
+    }
+
+    void receiver(FileReceiver receiver) {
+        this.receiver = receiver;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * 把消息放进写队列，可以在任意线程调用，不会阻塞。被接收时自己retain一次，调用者仍然持有原来的引用
+     *
+     * @return 消息是否被接收，连接不可写时按策略丢弃消息或断开连接并返回false
+     */
+    public boolean write(SharedBuffer frame) {
+        if (closed) {
+            return false;
+        }
+
+        if (!writable) {
+            shedMessages.incrementAndGet();
+            worker.metrics().messagesShed().increment();
+            if (waterMark.overflowPolicy() == WriteBufferWaterMark.OverflowPolicy.DROP_CLIENT) {
+                worker.execute(() -> worker.disconnect(this));
+            }
+            return false;
+        }
+
+        FrameWrite msg = new FrameWrite(frame.retain());
+        outboundQueue.offer(msg);
+        // 和writeFile一样，入队后才看到closed说明可能错过了close()的清空
+        if (closed && outboundQueue.remove(msg)) {
+            msg.release();
+            return false;
+        }
+        if (pendingBytes.addAndGet(msg.view.remaining()) > waterMark.high()) {
+            writable = false;
+        }
+        worker.scheduleFlush(this);
+        return true;
+    }
+
+    /**
+     * 把文件放进写队列，可以在任意线程调用，和文本消息共用一个队列，保持先后顺序
+     */
+    public void writeFile(FileRegion region) {
+        if (closed) {
+            region.release();
+            return;
+        }
+
+        outboundQueue.offer(region);
+        // close()先置closed再清空队列，入队后才看到closed说明可能错过了清空，谁把它移出队列谁负责释放
+        if (closed && outboundQueue.remove(region)) {
+            region.release();
+            return;
+        }
+        worker.scheduleFlush(this);
+    }
+
+    /**
+     * 尽可能多地把写队列里的数据写到socket，socket写满就注册OP_WRITE等下次可写再继续。
+     * 队头连续的多个帧用一次write(ByteBuffer[])写出去，文件单独用transferTo写。
+     * 只能在所属worker的线程里调用。
+     */
+    void flush() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        Object msg;
+        long total = 0;
+        ByteBuffer[] gather = worker.gatherBuffers();
+        while ((msg = outboundQueue.peek()) != null) {
+            if (msg instanceof FileRegion) {
+                FileRegion region = (FileRegion) msg;
+                long progress = region.progress();
+                boolean done = region.writeTo(channel);
+                total += region.progress() - progress;
+                if (!done) {
+                    break;
+                }
+                outboundQueue.poll();
+                region.release();
+                worker.fileSent(this, region);
+                continue;
+            }
+
+            // 只有本线程会从队列里取，遍历到的队头部分不会变
+            int count = 0;
+            for (Object next : outboundQueue) {
+                if (!(next instanceof FrameWrite) || count == gather.length) {
+                    break;
+                }
+                gather[count++] = ((FrameWrite) next).view;
+            }
+            long written = channel.write(gather, 0, count);
+            pendingBytes.addAndGet(-written);
+            total += written;
+
+            int completed = 0;
+            while (completed < count && !gather[completed].hasRemaining()) {
+                ((FrameWrite) outboundQueue.poll()).release();
+                completed++;
+            }
+            Arrays.fill(gather, 0, count, null);
+            if (completed < count) {
+                // 内核发送缓冲区满了
+                break;
+            }
+        }
+        if (total > 0) {
+            worker.metrics().bytesOut().add(total);
+            idle.writeActivity();
+        }
+
+        if (outboundQueue.isEmpty()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } else {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+
+        if (!writable && pendingBytes.get() <= waterMark.low()) {
+            writable = true;
+        }
+    }
+
+    /**
+     * 只能在所属worker的线程里调用
+     */
+    void close() throws IOException {
+        closed = true;
+        if (idle != null) {
+            idle.stop();
+        }
+        Object msg;
+        while ((msg = outboundQueue.poll()) != null) {
+            if (msg instanceof FileRegion) {
+                ((FileRegion) msg).release();
+            } else {
+                ((FrameWrite) msg).release();
+            }
+        }
+        if (receiver != null) {
+            receiver.abort();
+            receiver = null;
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        channel.close();
+    }
+
+    public boolean isWritable() {
+        return writable;
+    }
+
+    public long pendingBytes() {
+        return pendingBytes.get();
+    }
+
+    public long shedMessages() {
+        return shedMessages.get();
+    }
+
+    /**
+     * 写队列里的一帧，view是这个连接自己的读位置
+     */
+    private static class FrameWrite {
+
+        private final SharedBuffer frame;
+        private final ByteBuffer view;
+
+        FrameWrite(SharedBuffer frame) {
+            this.frame = frame;
+            this.view = frame.view();
+        }
+
+        void release() {
+            frame.release();
+        }
+    }
+}
@@ -0,0 +1,501 @@
+package org.yangxin.nio.chatroom.server;
+
+import org.yangxin.common.buffer.ByteBufferPool;
+import org.yangxin.common.buffer.SharedBuffer;
+import org.yangxin.common.codec.FrameCodec;
+import org.yangxin.common.file.FileCommand;
+import org.yangxin.common.file.FileReceiver;
+import org.yangxin.common.file.SharedFile;
+import org.yangxin.common.log.Logger;
+import org.yangxin.common.metrics.ChatMetrics;
+import org.yangxin.common.metrics.LatencyHistogram;
+import org.yangxin.common.room.RoomCommand;
+import org.yangxin.common.timer.HashedWheelTimer;
+import org.yangxin.common.timer.IdleState;
+import org.yangxin.common.timer.IdleStateMonitor;
+import org.yangxin.common.user.UserCommand;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一个Selector加一个线程组成的事件循环。
+ * boss只负责ACCEPT，把新连接分配给某个worker；worker负责分到自己名下连接的READ和转发。
+ * 单Reactor模式下没有worker，boss自己处理所有事件。
+ *
+ * @author yangxin
+ * 2026/10/17 10:05
+ */
+public class ChatWorker implements Runnable {
+
+    private static final Logger LOG = Logger.getLogger(ChatWorker.class);
+
+    private static final int BUFFER = 1024;
+    private static final long TICK_MILLIS = 100;
+    private static final int WHEEL_SIZE = 1024;
+    /**
+     * 一次聚集写最多带多少个buffer，远小于系统的IOV_MAX
+     */
+    private static final int MAX_GATHER = 64;
+
+    private final ChatServer server;
+    private final String name;
+    private final Selector selector;
+    /**
+     * 其他线程提交给本事件循环执行的任务，例如把新连接注册到本selector上
+     */
+    private final Queue<Runnable> taskQueue = new ConcurrentLinkedQueue<>();
+    private volatile Thread thread;
+    private final ByteBuffer READ_BUFFER = ByteBuffer.allocate(BUFFER);
+    private final FrameCodec CODEC = FrameCodec.DEFAULT;
+    private final ChatMetrics metrics;
+    /**
+     * 每轮事件循环从select返回到处理完所有事件和任务的耗时，不含阻塞在select上的时间
+     */
+    private final LatencyHistogram loopTime;
+    /**
+     * 本worker所有连接的空闲检测，由事件循环驱动，检测任务在本线程里执行，可以直接操作session
+     */
+    private final HashedWheelTimer timer = new HashedWheelTimer(TICK_MILLIS, TimeUnit.MILLISECONDS, WHEEL_SIZE);
+    /**
+     * 心跳是一个空帧，客户端收到后回一个空帧。worker一直持有这一个引用，不还给池
+     */
+    private final SharedBuffer PING = encodeFrame("");
+    /**
+     * 本轮循环里有新消息要写的连接，循环末尾统一flush，同一个连接在一轮里收到的多条消息合并成一次聚集写
+     */
+    private final Queue<ChatSession> pendingFlushes = new ArrayDeque<>();
+    /**
+     * 聚集写用的数组，只在本线程里用，所有连接共用
+     */
+    private final ByteBuffer[] gatherBuffers = new ByteBuffer[MAX_GATHER];
+
+    public ChatWorker(ChatServer server, String name) throws IOException {
+        this.server = server;
+        this.name = name;
+        this.selector = Selector.open();
+        this.metrics = server.metrics();
+        this.loopTime = metrics.registry().histogram(metrics.name("event_loop_nanos"));
+    }
+
+    public Selector selector() {
+        return selector;
+    }
+
+    /**
+     * 把新连接交给本worker，可以在任意线程调用，真正的注册在本worker的线程里完成
+     */
+    public void register(SocketChannel clientChannel) {
+        execute(() -> {
+            ChatSession session = new ChatSession(clientChannel, this, server.writeBufferWaterMark());
+            session.decoder(CODEC.newDecoder(frame -> handlesFrame(session, frame)));
+            session.idle(new IdleStateMonitor(timer, state -> handlesIdle(session, state)));
+            try {
+                session.attach(clientChannel.register(selector, SelectionKey.OP_READ, session));
+                server.addClient(session);
+                session.idle().start();
+            } catch (IOException e) {
+                e.printStackTrace();
+                close(clientChannel);
+            }
+        });
+    }
+
+    /**
+     * 提交一个任务到本worker的线程里执行，可以在任意线程调用
+     */
+    public void execute(Runnable task) {
+        taskQueue.offer(task);
+        if (!inEventLoop()) {
+            // 唤醒阻塞在select上的worker线程，让它尽快处理任务
+            selector.wakeup();
+        }
+    }
+
+    public boolean inEventLoop() {
+        return thread == Thread.currentThread();
+    }
+
+    ChatMetrics metrics() {
+        return metrics;
+    }
+
+    ByteBuffer[] gatherBuffers() {
+        return gatherBuffers;
+    }
+
+    /**
+     * 让session的写队列在本轮循环末尾被刷出去，可以在任意线程调用。
+     * 一轮里不论来了多少条消息，每个连接只登记一次、写一次。
+     */
+    void scheduleFlush(ChatSession session) {
+        if (!session.flushScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        if (inEventLoop()) {
+            pendingFlushes.offer(session);
+        } else {
+            execute(() -> pendingFlushes.offer(session));
+        }
+    }
+
+    private void flushPending() {
+        ChatSession session;
+        while ((session = pendingFlushes.poll()) != null) {
+            // 先清标记再写，flush期间又来的消息会重新登记
+            session.flushScheduled.set(false);
+            flush(session);
+        }
+    }
+
+    private void flush(ChatSession session) {
+        try {
+            session.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+            disconnect(session);
+        }
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        try {
+            while (selector.isOpen()) {
+                // select()阻塞到至少有一个通道在你注册的事件上就绪了，或者被wakeup唤醒；
+                // 时间轮里有任务时最多阻塞一个tick，到点了好推进时间轮
+                selector.select(timer.isEmpty() ? 0 : timer.tickMillis());
+                long start = System.nanoTime();
+                Set<SelectionKey> keySet = selector.selectedKeys();
+                for (SelectionKey key : keySet) {
+                    // 处理被触发的事件
+                    handles(key);
+                }
+                keySet.clear();
+
+                runTasks();
+                timer.advance(System.nanoTime());
+                flushPending();
+                loopTime.record(System.nanoTime() - start);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (ClosedSelectorException e) {
+            // 服务器正常关闭
+        } finally {
+            close(selector);
+        }
+    }
+
+    public void shutdown() {
+        close(selector);
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = taskQueue.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void handles(SelectionKey key) {
+        try {
+            // ACCEPT事件：和客户端建立了连接
+            if (key.isAcceptable()) {
+                handlesAcceptable(key);
+                return;
+            }
+
+            // READ事件：客户端发送了消息
+            if (key.isReadable()) {
+                handlesReadable(key);
+            }
+            // WRITE事件：之前没写完的数据现在可以继续写了
+            if (key.isValid() && key.isWritable()) {
+                ((ChatSession) key.attachment()).flush();
+            }
+        } catch (IOException e) {
+            // 单个客户端出错不能拖垮整个事件循环
+            e.printStackTrace();
+            if (key.attachment() instanceof ChatSession) {
+                disconnect((ChatSession) key.attachment());
+            }
+        }
+    }
+
+    /**
+     * 一次把accept队列里已完成握手的连接都取出来，连接风暴时不至于每轮select只接一个
+     */
+    private void handlesAcceptable(SelectionKey key) throws IOException {
+        ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
+        SocketChannel clientChannel;
+        while ((clientChannel = serverChannel.accept()) != null) {
+            clientChannel.configureBlocking(false);
+            server.nextWorker().register(clientChannel);
+        }
+    }
+
+    /**
+     * 一次read()可能读到半个帧，也可能读到好几个帧，都交给解码器处理
+     */
+    private void handlesReadable(SelectionKey key) throws IOException {
+        ChatSession session = (ChatSession) key.attachment();
+        SocketChannel channel = session.channel();
+        int read;
+        while ((read = channel.read(READ_BUFFER)) > 0) {
+            metrics.bytesIn().add(read);
+            session.idle().readActivity();
+            READ_BUFFER.flip();
+            session.decoder().decode(READ_BUFFER);
+            READ_BUFFER.clear();
+            if (session.isClosed()) {
+                return;
+            }
+        }
+
+        if (read < 0) {
+            // 客户端断开
+            disconnect(session);
+        }
+    }
+
+    /**
+     * 正在上传文件时，帧是文件内容，否则是文本消息
+     */
+    private void handlesFrame(ChatSession session, ByteBuffer frame) throws IOException {
+        FileReceiver receiver = session.receiver();
+        if (receiver == null) {
+            handlesMessage(session, FrameCodec.toString(frame));
+            return;
+        }
+
+        receiver.write(frame);
+        if (receiver.isComplete()) {
+            session.receiver(null);
+            shareFile(session, receiver);
+        }
+    }
+
+    private void handlesMessage(ChatSession session, String forwardMsg) throws IOException {
+        if (session.isClosed() || forwardMsg.isEmpty()) {
+            return;
+        }
+        metrics.messagesIn().increment();
+
+        if (FileCommand.isCommand(forwardMsg)) {
+            FileCommand command = FileCommand.parseUpload(forwardMsg);
+            if (command == null) {
+                // 后面跟着的文件内容没法和文本消息区分，只能断开
+                throw new IOException("无效的文件命令：" + forwardMsg);
+            }
+            FileReceiver receiver = FileReceiver.toTempFile(command);
+            if (receiver.isComplete()) {
+                shareFile(session, receiver);
+            } else {
+                session.receiver(receiver);
+            }
+            return;
+        }
+
+        if (RoomCommand.isCommand(forwardMsg)) {
+            handlesRoomCommand(session, forwardMsg);
+            return;
+        }
+        if (UserCommand.isLogin(forwardMsg)) {
+            handlesLogin(session, forwardMsg);
+            return;
+        }
+        if (UserCommand.isDirect(forwardMsg)) {
+            handlesDirectMessage(session, forwardMsg);
+            return;
+        }
+
+        // 只入队模板和参数，拼接和输出在日志线程里做
+        LOG.info("{}：{}", session.name(), forwardMsg);
+        forwardMessage(session, forwardMsg);
+
+        // 检查用户是否退出
+        if (server.readyToQuit(forwardMsg)) {
+            disconnect(session);
+        }
+    }
+
+    /**
+     * 进出房间，结果只回给发命令的人
+     */
+    private void handlesRoomCommand(ChatSession session, String msg) {
+        RoomCommand command = RoomCommand.parse(msg);
+        if (command == null) {
+            reply(session, RoomCommand.usage());
+            return;
+        }
+
+        server.rooms().join(session, command.room());
+        LOG.info("{}进入房间：{}", session.name(), command.room());
+        reply(session, RoomCommand.reply(command.room()));
+    }
+
+    /**
+     * 先用putIfAbsent占住新名字，成功后再放掉旧名字，同名登录只有一个能成功
+     */
+    private void handlesLogin(ChatSession session, String msg) {
+        String name = UserCommand.parseLogin(msg);
+        if (name == null) {
+            reply(session, UserCommand.loginUsage());
+            return;
+        }
+        if (!server.users().register(name, session)) {
+            reply(session, "名字已被占用：" + name);
+            return;
+        }
+
+        String previous = session.name();
+        if (!name.equals(session.loginName())) {
+            server.users().unregister(session.loginName(), session);
+        }
+        session.login(name);
+        LOG.info("{}登录为：{}", previous, name);
+        reply(session, "登录成功：" + name);
+    }
+
+    /**
+     * 按名字在索引里找到接收者，直接放进它的写队列，不经过房间
+     */
+    private void handlesDirectMessage(ChatSession session, String msg) {
+        UserCommand command = UserCommand.parseDirect(msg);
+        if (command == null) {
+            reply(session, UserCommand.directUsage());
+            return;
+        }
+        ChatSession target = server.users().lookup(command.target());
+        if (target == null) {
+            reply(session, "用户不在线：" + command.target());
+            return;
+        }
+
+        SharedBuffer frame = encodeFrame(UserCommand.direct(session.name(), command.text()));
+        if (target.write(frame)) {
+            metrics.messagesOut().increment();
+        }
+        frame.release();
+    }
+
+    /**
+     * 只回给这个连接的提示
+     */
+    private void reply(ChatSession session, String msg) {
+        SharedBuffer frame = encodeFrame(msg);
+        session.write(frame);
+        frame.release();
+    }
+
+    /**
+     * 读空闲说明客户端连心跳都不回了，断开；写空闲就发一个心跳
+     */
+    private void handlesIdle(ChatSession session, IdleState state) {
+        if (session.isClosed()) {
+            return;
+        }
+        if (state == IdleState.READER_IDLE) {
+            LOG.info("{}{}秒没有数据，断开连接", session.name(), IdleStateMonitor.READ_IDLE_SECONDS);
+            disconnect(session);
+        } else {
+            session.write(PING);
+        }
+    }
+
+    /**
+     * 只能在session所属worker的线程里调用
+     */
+    void disconnect(ChatSession session) {
+        server.removeClient(session);
+        try {
+            session.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 转发给发送者所在房间的其他人，其中可能有属于其他worker的连接；分片模式下再交给其他分片。
+     * 消息只是放进各个连接的写队列，慢的客户端不会卡住本事件循环。
+     * 消息只编码一次，编码进从池里借来的直接内存，每个接收者拿到的是它的只读视图，各自维护position，
+     * 最后一个接收者写完后buffer还给池。
+     */
+    private void forwardMessage(ChatSession sender, String msg) {
+        String text = sender.name() + ": " + msg;
+        // 先持有一个引用，防止前面的接收者写得太快把buffer提前还给池
+        SharedBuffer frame = encodeFrame(text);
+        for (ChatSession session : server.rooms().roommates(sender)) {
+            if (session != sender && session.write(frame)) {
+                metrics.messagesOut().increment();
+            }
+        }
+        frame.release();
+        server.publish(server.rooms().roomOf(sender), text);
+    }
+
+    /**
+     * 上传完的文件发给同一个房间的其他人。通知帧只编码一次，文件只有一份，每个接收者一个FileRegion记录自己的进度，
+     * 最后一个接收者发完后临时文件被删除。
+     */
+    private void shareFile(ChatSession sender, FileReceiver receiver) {
+        FileCommand command = receiver.command();
+        String senderName = sender.name();
+        LOG.info("{}分享了文件：{}，{}字节", senderName, command.name(), command.size());
+
+        SharedFile file = new SharedFile(receiver.channel(), command.name(), command.size(), 1);
+        ByteBuffer announce = CODEC.encode(FileCommand.announce(command.size(), senderName, command.name()));
+        for (ChatSession session : server.rooms().roommates(sender)) {
+            if (session != sender) {
+                session.writeFile(new FileRegion(file.retain(), CODEC, announce.duplicate()));
+            }
+        }
+        file.release();
+    }
+
+    /**
+     * 编码进从池里借来的直接内存，返回的SharedBuffer带一个引用，分发完要release
+     */
+    static SharedBuffer encodeFrame(String msg) {
+        byte[] payload = msg.getBytes(FrameCodec.CHARSET);
+        ByteBuffer buffer = ByteBufferPool.DEFAULT.acquire(FrameCodec.DEFAULT.headerLength(payload.length)
+                + payload.length);
+        FrameCodec.DEFAULT.writeFrame(buffer, payload);
+        buffer.flip();
+        return new SharedBuffer(ByteBufferPool.DEFAULT, buffer, 1);
+    }
+
+    void fileSent(ChatSession session, FileRegion region) {
+        LOG.info("{}已收到文件：{}，{}/{}字节", session.name(), region.name(),
+                region.progress(), region.size());
+    }
+
+    private void close(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,104 @@
+package org.yangxin.nio.chatroom.server;
+
+import org.yangxin.common.codec.FrameCodec;
+import org.yangxin.common.file.FileCommand;
+import org.yangxin.common.file.SharedFile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * 写队列里的一个文件：先是"/file"通知帧，然后把文件切成若干帧，每帧的头部之后用transferTo直接从文件写进socket，
+ * 文件内容不经过用户态内存。每个接收者一个FileRegion，共享同一个SharedFile，各自记录发送进度。
+ * 只在所属worker的线程里使用。
+ *
+ * @author yangxin
+ * 2026/10/17 21:00
+ */
+public class FileRegion {
+
+    private final SharedFile file;
+    private final FrameCodec codec;
+    private final ByteBuffer announce;
+    private final ByteBuffer header = ByteBuffer.allocate(5);
+    /**
+     * 已经发出的文件字节数
+     */
+    private long position;
+    /**
+     * 当前帧在文件里的结束位置
+     */
+    private long chunkEnd;
+
+    /**
+     * @param file     已经retain过的文件，发完或者连接关闭时release
+     * @param announce 通知帧，可以是多个接收者共用的那一帧的duplicate
+     */
+    public FileRegion(SharedFile file, FrameCodec codec, ByteBuffer announce) {
+        this.file = file;
+        this.codec = codec;
+        this.announce = announce;
+        header.flip();
+    }
+
+    /**
+     * 尽可能多地写，socket写满就返回
+     *
+     * @return 是否已经全部写完
+     */
+    boolean writeTo(SocketChannel channel) throws IOException {
+        if (announce.hasRemaining()) {
+            channel.write(announce);
+            if (announce.hasRemaining()) {
+                return false;
+            }
+        }
+
+        while (true) {
+            if (header.hasRemaining()) {
+                channel.write(header);
+                if (header.hasRemaining()) {
+                    return false;
+                }
+            }
+            if (position == chunkEnd) {
+                if (position == file.size()) {
+                    return true;
+                }
+                int length = (int) Math.min(FileCommand.CHUNK_SIZE, file.size() - position);
+                header.clear();
+                codec.writeHeader(header, length);
+                header.flip();
+                chunkEnd = position + length;
+                continue;
+            }
+
+            long transferred = file.channel().transferTo(position, chunkEnd - position, channel);
+            if (transferred == 0) {
+                // 内核发送缓冲区满了
+                return false;
+            }
+            position += transferred;
+        }
+    }
+
+    public String name() {
+        return file.name();
+    }
+
+    public long size() {
+        return file.size();
+    }
+
+    /**
+     * 已经发出的文件字节数，不含帧头
+     */
+    public long progress() {
+        return position;
+    }
+
+    void release() {
+        file.release();
+    }
+}
@@ -0,0 +1,63 @@
+package org.yangxin.nio.chatroom.server;
+
+/**
+ * 每个连接写队列的高低水位。
+ * 待写字节数超过高水位后连接变为不可写，直到被刷到低水位以下才恢复；不可写期间到来的消息按溢出策略处理。
+ *
+ * @author yangxin
+ * 2026/10/17 11:20
+ */
+public class WriteBufferWaterMark {
+
+    public static final WriteBufferWaterMark DEFAULT =
+            new WriteBufferWaterMark(32 * 1024, 64 * 1024, OverflowPolicy.SHED_MESSAGES);
+
+    /**
+     * 连接处于不可写状态时又来了新消息的处理方式
+     */
+    public enum OverflowPolicy {
+
+        /**
+         * 丢弃新消息，连接保留
+         */
+        SHED_MESSAGES,
+
+        /**
+         * 断开这个跟不上的客户端
+         */
+        DROP_CLIENT
+    }
+
+    private final int low;
+    private final int high;
+    private final OverflowPolicy overflowPolicy;
+
+    public WriteBufferWaterMark(int low, int high, OverflowPolicy overflowPolicy) {
+        if (low < 0 || high < low) {
+            throw new IllegalArgumentException("low: " + low + ", high: " + high);
+        }
+        if (overflowPolicy == null) {
+            throw new IllegalArgumentException("overflowPolicy is null");
+        }
+        this.low = low;
+        this.high = high;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public int low() {
+        return low;
+    }
+
+    public int high() {
+        return high;
+    }
+
+    public OverflowPolicy overflowPolicy() {
+        return overflowPolicy;
+    }
+
+    @Override
+    public String toString() {
+        return "WriteBufferWaterMark(low: " + low + ", high: " + high + ", policy: " + overflowPolicy + ")";
+    }
+}